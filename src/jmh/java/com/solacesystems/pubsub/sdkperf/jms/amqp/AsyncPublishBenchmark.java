@@ -0,0 +1,89 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+
+import org.apache.qpid.jms.JmsQueue;
+import org.apache.qpid.jms.provider.amqp.message.AmqpJmsBytesMessageFacade;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solacesystems.pubsub.sdkperf.core.BasicMsgRep;
+
+/**
+ * Publish path of AmqpJms_2_0_Client on an in-VM transport. "sendAndComplete"
+ * is one publishMessage() through the publish window and its completion
+ * callback; "binaryMessage" is a whole publishMsg() of a -smf style binary
+ * message, through publishBinarySmfMsg(). Run with -prof gc to see
+ * gc.alloc.rate.norm per publish.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncPublishBenchmark {
+
+	@Param({ "0", "100" })
+	public int windowSize;
+
+	@Param({ "false", "true" })
+	public boolean endToEndLatency;
+
+	private InVmClient client;
+	private LoopbackProducer producer;
+	private Destination dest;
+	private BytesMessage msg;
+	private BasicMsgRep binaryMsgRep;
+
+	@Setup
+	public void setup() throws Exception {
+		client = InVmClient.create("-pql=q1", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE + "," + windowSize + ","
+				+ AmqpPluginProperties.END_TO_END_LATENCY + "," + endToEndLatency);
+		producer = client.getProducer(0);
+		dest = new JmsQueue("q1");
+		msg = new AmqpJmsBytesMessageFacade().asJmsMessage();
+		msg.writeBytes(new byte[100]);
+
+		BasicMsgRep msgRep = new BasicMsgRep();
+		msgRep.configureForSmfBytesMsg(new byte[100]);
+		binaryMsgRep = client.cloneToApiSpecificMsgRep(new BasicMsgRep[] { msgRep })[0];
+	}
+
+	@Benchmark
+	public void sendAndComplete() throws Exception {
+		client.publishMessage(producer, dest, msg);
+	}
+
+	@Benchmark
+	public void binaryMessage() throws Exception {
+		client.publishMsg(binaryMsgRep, 0);
+	}
+}
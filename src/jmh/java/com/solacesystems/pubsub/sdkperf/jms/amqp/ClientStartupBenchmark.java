@@ -0,0 +1,86 @@
+/** 
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *  
+ *  http://www.solace.com
+ *  
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is   
+ *  authorized only with written permission.  Use of part or modified  
+ *  source code must carry prominent notices stating that you modified it, 
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.ConnectionFactory;
+import javax.naming.InitialContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.solacesystems.pubsub.sdkperf.config.CliPropertiesParser;
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+
+/**
+ * Per-client setup done before connecting (InitialContext and connection
+ * factory lookup) for a whole run of clients, without a broker. "perClient"
+ * builds the connection URI and factory for every client, as before the
+ * cache; "cached" is the current path through AmqpJmsSdkperfFactory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClientStartupBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int clients;
+
+	private AmqpJmsSdkperfFactory factory;
+	private RuntimeProperties props;
+
+	@Setup
+	public void setup() throws Exception {
+		factory = new AmqpJmsSdkperfFactory();
+		props = CliPropertiesParser.parseCli(new String[] { "-cip=broker1:5672,broker2:5672", "-cu=perf",
+				"-cp=secret", "-epl=jms.prefetchPolicy.all,1000,amqp.idleTimeout,30000" }, System.err);
+	}
+
+	@Benchmark
+	public void perClient(Blackhole bh) throws Exception {
+		for (int i = 1; i <= clients; i++) {
+			AmqpJmsSdkperfFactory.clearConnectionSettingsCache();
+			bh.consume(lookup(i));
+		}
+	}
+
+	@Benchmark
+	public void cached(Blackhole bh) throws Exception {
+		AmqpJmsSdkperfFactory.clearConnectionSettingsCache();
+		for (int i = 1; i <= clients; i++) {
+			bh.consume(lookup(i));
+		}
+	}
+
+	private ConnectionFactory lookup(int clientIdInt) throws Exception {
+		InitialContext initialContext = factory.createInitialContext(props, clientIdInt);
+		return (ConnectionFactory) initialContext.lookup(AmqpJmsClient.CONNECTION_FACTORY_LOOKUP);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+
+import org.apache.qpid.jms.provider.amqp.message.AmqpJmsBytesMessageFacade;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of one async send completion in AmqpJms_2_0_Client. "legacy" is the
+ * callback as it used to be, building the INFO line with Message.toString()
+ * for every ack (log I/O not included). "current" is the allocation-free
+ * path. Run with -prof gc to compare gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompletionCallbackBenchmark {
+
+	private AmqpJms_2_0_Client client;
+	private AsyncPublishWindow window;
+	private BytesMessage msg;
+	private String clientIdStr;
+
+	@Setup
+	public void setup() throws Exception {
+		client = new AmqpJms_2_0_Client();
+		window = new AsyncPublishWindow(0, 1024);
+		msg = new AmqpJmsBytesMessageFacade().asJmsMessage();
+		msg.writeBytes(new byte[100]);
+		clientIdStr = "perf_client_0001";
+	}
+
+	@Benchmark
+	public void legacy(Blackhole bh) throws Exception {
+		window.acquire(0);
+		window.onAcked();
+		bh.consume("CLIENT " + clientIdStr + " published message asynchronously. Message:" + msg.toString()
+				+ "\nCLIENT " + clientIdStr);
+	}
+
+	@Benchmark
+	public void current() throws Exception {
+		window.acquire(0);
+		client.onCompletion(window, msg);
+	}
+}
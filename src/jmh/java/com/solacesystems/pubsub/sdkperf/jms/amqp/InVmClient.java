@@ -0,0 +1,121 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.apache.qpid.jms.JmsQueue;
+import org.apache.qpid.jms.JmsTopic;
+import org.apache.qpid.jms.provider.amqp.message.AmqpJmsBytesMessageFacade;
+
+import com.solacesystems.pubsub.sdkperf.config.CliPropertiesParser;
+import com.solacesystems.pubsub.sdkperf.config.EpConfigProperties;
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+import com.solacesystems.pubsub.sdkperf.core.ClientFactory;
+import com.solacesystems.pubsub.sdkperf.jms.core.BasicMessageListener;
+
+/**
+ * AmqpJms_2_0_Client on an in-VM transport, for the microbenchmarks. The
+ * client is created and initialized by sdkperf from command line options as
+ * usual, but instead of connecting it gets a stub session that builds qpid
+ * messages and destinations, and a LoopbackProducer for every producer
+ * index. Everything above the JMS API runs unchanged.
+ */
+public class InVmClient extends AmqpJms_2_0_Client {
+
+	private RuntimeProperties props;
+
+	public InVmClient() {
+		super();
+	}
+
+	/**
+	 * @param options sdkperf options, for example "-pql=q1" or "-epl=..."
+	 */
+	public static InVmClient create(String... options) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("-api=thirdparty");
+		args.add("-ecc=" + InVmClient.class.getName());
+		args.add("-cip=localhost:5672");
+		args.addAll(Arrays.asList(options));
+		RuntimeProperties props = CliPropertiesParser.parseCli(args.toArray(new String[args.size()]), System.err);
+		InVmClient client = (InVmClient) ClientFactory.createClient(props, 1, null);
+		client.props = props;
+		client.attachInVmTransport();
+		return client;
+	}
+
+	private void attachInVmTransport() throws Exception {
+		_jmsSession = (Session) stub(Session.class);
+		for (int i = 0; i < _producers.length; i++) {
+			_producers[i] = new LoopbackProducer();
+			_currProducers[i] = _producers[i];
+		}
+		setPublishProps(props, 0, "");
+	}
+
+	public RuntimeProperties getProps() {
+		return props;
+	}
+
+	public LoopbackProducer getProducer(int index) {
+		return (LoopbackProducer) _producers[index];
+	}
+
+	/** A listener for a consumer on the queue, built the way a -sql consumer gets one. */
+	public BasicMessageListener createQueueListener(String queue) throws Exception {
+		EpConfigProperties epProps = EpConfigProperties.CreateForQueueEpAdd(Arrays.asList(queue), null, false, "",
+				0, 0, false, false, false);
+		return createMessageListener((MessageConsumer) stub(MessageConsumer.class), epProps, queue, false);
+	}
+
+	/**
+	 * Only the calls the publish and receive paths make are implemented, any
+	 * other call fails the benchmark.
+	 */
+	private static Object stub(Class<?> type) {
+		return Proxy.newProxyInstance(InVmClient.class.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("createBytesMessage")) {
+							return new AmqpJmsBytesMessageFacade().asJmsMessage();
+						} else if (name.equals("createQueue")) {
+							return new JmsQueue((String) args[0]);
+						} else if (name.equals("createTopic")) {
+							return new JmsTopic((String) args[0]);
+						} else if (name.equals("setMessageListener") || name.equals("close")) {
+							return null;
+						} else if (name.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (name.equals("equals")) {
+							return proxy == args[0];
+						} else if (name.equals("toString")) {
+							return "InVm" + method.getDeclaringClass().getSimpleName();
+						}
+						throw new UnsupportedOperationException(method.toString());
+					}
+				});
+	}
+}
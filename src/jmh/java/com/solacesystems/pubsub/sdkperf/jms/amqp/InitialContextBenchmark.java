@@ -0,0 +1,75 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solacesystems.pubsub.sdkperf.config.CliPropertiesParser;
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+
+/**
+ * One AmqpJmsSdkperfFactory.createInitialContext() call. "uncached" builds
+ * the connection URI and connection factory from the sdkperf options, as the
+ * first client with given options does; "cached" is every later client,
+ * which only reads its options and gets its own context. Run with -prof gc
+ * to see gc.alloc.rate.norm per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InitialContextBenchmark {
+
+	@Param({ "broker1:5672", "broker1:5672,broker2:5672" })
+	public String hosts;
+
+	private AmqpJmsSdkperfFactory factory;
+	private RuntimeProperties props;
+
+	@Setup
+	public void setup() throws Exception {
+		factory = new AmqpJmsSdkperfFactory();
+		props = CliPropertiesParser.parseCli(new String[] { "-cip=" + hosts, "-cu=perf", "-cp=secret",
+				"-epl=jms.prefetchPolicy.all,1000,amqp.idleTimeout,30000" }, System.err);
+	}
+
+	@Benchmark
+	public InitialContext uncached() throws Exception {
+		AmqpJmsSdkperfFactory.clearConnectionSettingsCache();
+		return factory.createInitialContext(props, 1);
+	}
+
+	@Benchmark
+	public InitialContext cached() throws Exception {
+		return factory.createInitialContext(props, 1);
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import javax.jms.CompletionListener;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+/**
+ * In-VM producer for the microbenchmarks. Sends go nowhere, and an async send
+ * completes on the calling thread before send() returns, so a benchmark sees
+ * the plugin's own cost of a publish and its acknowledgement without any
+ * broker or I/O.
+ */
+public class LoopbackProducer implements MessageProducer {
+
+	private boolean disableMessageId = false;
+	private boolean disableMessageTimestamp = false;
+	private int deliveryMode = DeliveryMode.PERSISTENT;
+	private int priority = Message.DEFAULT_PRIORITY;
+	private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+	private long deliveryDelay = Message.DEFAULT_DELIVERY_DELAY;
+	private long sent = 0;
+
+	public long getSent() {
+		return sent;
+	}
+
+	public void setDisableMessageID(boolean value) {
+		disableMessageId = value;
+	}
+
+	public boolean getDisableMessageID() {
+		return disableMessageId;
+	}
+
+	public void setDisableMessageTimestamp(boolean value) {
+		disableMessageTimestamp = value;
+	}
+
+	public boolean getDisableMessageTimestamp() {
+		return disableMessageTimestamp;
+	}
+
+	public void setDeliveryMode(int deliveryMode) {
+		this.deliveryMode = deliveryMode;
+	}
+
+	public int getDeliveryMode() {
+		return deliveryMode;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public void setDeliveryDelay(long deliveryDelay) {
+		this.deliveryDelay = deliveryDelay;
+	}
+
+	public long getDeliveryDelay() {
+		return deliveryDelay;
+	}
+
+	public Destination getDestination() {
+		return null;
+	}
+
+	public void close() {
+	}
+
+	public void send(Message message) {
+		sent++;
+	}
+
+	public void send(Message message, int deliveryMode, int priority, long timeToLive) {
+		sent++;
+	}
+
+	public void send(Destination destination, Message message) {
+		sent++;
+	}
+
+	public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) {
+		sent++;
+	}
+
+	public void send(Message message, CompletionListener completionListener) {
+		sent++;
+		completionListener.onCompletion(message);
+	}
+
+	public void send(Message message, int deliveryMode, int priority, long timeToLive,
+			CompletionListener completionListener) {
+		sent++;
+		completionListener.onCompletion(message);
+	}
+
+	public void send(Destination destination, Message message, CompletionListener completionListener) {
+		sent++;
+		completionListener.onCompletion(message);
+	}
+
+	public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+			CompletionListener completionListener) {
+		sent++;
+		completionListener.onCompletion(message);
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+
+import org.apache.qpid.jms.provider.amqp.message.AmqpJmsBytesMessageFacade;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solacesystems.pubsub.sdkperf.jms.core.BasicMessageListener;
+
+/**
+ * Receive dispatch: one onMessage() call on the listener that
+ * createMessageListener() builds for a queue consumer, with sdkperf's
+ * message processing and stats behind it. "client" ack mode adds the
+ * batched acknowledge (every 100 messages, a no-op here without a broker).
+ * Run with -prof gc to see gc.alloc.rate.norm per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDispatchBenchmark {
+
+	@Param({ "auto", "client" })
+	public String ackMode;
+
+	@Param({ "false", "true" })
+	public boolean endToEndLatency;
+
+	private BasicMessageListener listener;
+	private BytesMessage msg;
+
+	@Setup
+	public void setup() throws Exception {
+		InVmClient client = InVmClient.create("-epl=" + AmqpPluginProperties.CONSUMER_ACK_MODE + "," + ackMode + ","
+				+ AmqpPluginProperties.ACK_BATCH_SIZE + ",100," + AmqpPluginProperties.END_TO_END_LATENCY + ","
+				+ endToEndLatency);
+		listener = client.createQueueListener("q1");
+		msg = new AmqpJmsBytesMessageFacade().asJmsMessage();
+		msg.writeBytes(new byte[100]);
+		msg.setLongProperty(EndToEndLatency.SEND_TIME_PROPERTY, EndToEndLatency.now());
+		msg.reset();
+	}
+
+	@Benchmark
+	public void onMessage() {
+		listener.onMessage(msg);
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+
+import org.apache.qpid.jms.provider.amqp.message.AmqpJmsBytesMessageFacade;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message preparation cost per send before qpid encodes it. "perSend" builds
+ * a new BytesMessage for every send like the generic sdkperf path; "template"
+ * reuses one from a MessageTemplateRing and only writes the sequence number
+ * and timestamp. Run with -prof gc to compare gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTemplateBenchmark {
+
+	@Param({ "100", "1024" })
+	public int payloadSize;
+
+	private byte[] payload;
+	private MessageTemplateRing ring;
+	private long seq;
+
+	@Setup
+	public void setup() throws Exception {
+		payload = new byte[payloadSize];
+		ring = new MessageTemplateRing(64);
+		for (int i = 0; i < ring.getSize(); i++) {
+			ring.next(payload);
+			ring.replace(newMessage(), payload);
+		}
+	}
+
+	private BytesMessage newMessage() throws Exception {
+		BytesMessage msg = new AmqpJmsBytesMessageFacade().asJmsMessage();
+		msg.writeBytes(payload);
+		return msg;
+	}
+
+	@Benchmark
+	public BytesMessage perSend() throws Exception {
+		BytesMessage msg = newMessage();
+		msg.setLongProperty("m", ++seq);
+		msg.setLongProperty("l", System.nanoTime());
+		return msg;
+	}
+
+	@Benchmark
+	public BytesMessage template() throws Exception {
+		BytesMessage msg = ring.next(payload);
+		msg.setLongProperty("m", ++seq);
+		msg.setLongProperty("l", System.nanoTime());
+		return msg;
+	}
+}
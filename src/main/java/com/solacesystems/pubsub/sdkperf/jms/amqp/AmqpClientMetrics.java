@@ -0,0 +1,162 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of one client, read on demand from the counters and histograms the
+ * client already keeps. Nothing is recorded here, so exporting metrics adds
+ * no work and no locks to the send or receive path.
+ */
+public class AmqpClientMetrics implements AmqpClientMetricsMBean {
+
+	private static final long RATE_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final AmqpJmsClient _client;
+	// Received count sampled at most once per RATE_SAMPLE_NANOS: the receive rate
+	// is taken against the older sample, so it does not depend on how often or by
+	// how many readers it is read.
+	private long _olderReceived = 0;
+	private long _olderNanos = System.nanoTime();
+	private long _newerReceived = 0;
+	private long _newerNanos = _olderNanos;
+
+	public AmqpClientMetrics(AmqpJmsClient client) {
+		_client = client;
+	}
+
+	public AmqpJmsClient getClient() {
+		return _client;
+	}
+
+	public String getClientId() {
+		return _client.getIdStr();
+	}
+
+	public long getPublished() {
+		return _client.getPublished();
+	}
+
+	public long getAsyncAcked() {
+		long acked = 0;
+		for (AsyncPublishWindow window : getPublishWindows()) {
+			acked += window.getAcked();
+		}
+		return acked;
+	}
+
+	public long getAsyncFailed() {
+		long failed = 0;
+		for (AsyncPublishWindow window : getPublishWindows()) {
+			failed += window.getFailed();
+		}
+		return failed;
+	}
+
+	public long getAsyncOutstanding() {
+		long outstanding = 0;
+		for (AsyncPublishWindow window : getPublishWindows()) {
+			outstanding += window.getOutstanding();
+		}
+		return outstanding;
+	}
+
+	public long getReceived() {
+		return _client.getReceived();
+	}
+
+	public synchronized double getReceiveRatePerSec() {
+		long now = System.nanoTime();
+		long received = getReceived();
+		if (now - _newerNanos >= RATE_SAMPLE_NANOS) {
+			_olderReceived = _newerReceived;
+			_olderNanos = _newerNanos;
+			_newerReceived = received;
+			_newerNanos = now;
+		}
+		double seconds = (now - _olderNanos) / 1e9;
+		return (seconds > 0 && received >= _olderReceived) ? (received - _olderReceived) / seconds : 0;
+	}
+
+	public long getConnectionInterruptions() {
+		return _client.getConnectionEvents().getInterruptions();
+	}
+
+	public long getConnectionRestorations() {
+		return _client.getConnectionEvents().getRestorations();
+	}
+
+	/** Publish-to-ack latency of async sends across all producers, null for a synchronous client. */
+	public LatencyHistogram.Snapshot getAckLatency() {
+		LatencyHistogram.Snapshot total = null;
+		for (AsyncPublishWindow window : getPublishWindows()) {
+			total = (total == null) ? window.getAckLatency() : total.add(window.getAckLatency());
+		}
+		return total;
+	}
+
+	/** End-to-end latency across all consumers, null when not in end-to-end latency mode. */
+	public LatencyHistogram.Snapshot getEndToEndLatency() {
+		return _client.getEndToEndLatency();
+	}
+
+	public long getAckLatencyP50Micros() {
+		return toMicros(getAckLatency(), 50.0);
+	}
+
+	public long getAckLatencyP99Micros() {
+		return toMicros(getAckLatency(), 99.0);
+	}
+
+	public long getAckLatencyP999Micros() {
+		return toMicros(getAckLatency(), 99.9);
+	}
+
+	public long getAckLatencyMaxMicros() {
+		return toMicros(getAckLatency(), 100.0);
+	}
+
+	public long getEndToEndLatencyP50Micros() {
+		return toMicros(getEndToEndLatency(), 50.0);
+	}
+
+	public long getEndToEndLatencyP99Micros() {
+		return toMicros(getEndToEndLatency(), 99.0);
+	}
+
+	public long getEndToEndLatencyP999Micros() {
+		return toMicros(getEndToEndLatency(), 99.9);
+	}
+
+	public long getEndToEndLatencyMaxMicros() {
+		return toMicros(getEndToEndLatency(), 100.0);
+	}
+
+	private AsyncPublishWindow[] getPublishWindows() {
+		if (_client instanceof AmqpJms_2_0_Client) {
+			return ((AmqpJms_2_0_Client) _client).getPublishWindows();
+		}
+		return new AsyncPublishWindow[0];
+	}
+
+	private static long toMicros(LatencyHistogram.Snapshot snapshot, double percentile) {
+		if (snapshot == null) {
+			return 0;
+		}
+		return TimeUnit.NANOSECONDS.toMicros(snapshot.getValueAtPercentile(percentile));
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+/**
+ * JMX view of one client's counters and latencies. Latencies are in
+ * microseconds and cover the run since the last stats reset.
+ */
+public interface AmqpClientMetricsMBean {
+
+	long getPublished();
+
+	long getAsyncAcked();
+
+	long getAsyncFailed();
+
+	long getAsyncOutstanding();
+
+	long getReceived();
+
+	/**
+	 * Receive rate over the last one to two seconds, or since the client
+	 * connected. Reads do not change it, so several readers see the same rate.
+	 */
+	double getReceiveRatePerSec();
+
+	long getConnectionInterruptions();
+
+	long getConnectionRestorations();
+
+	long getAckLatencyP50Micros();
+
+	long getAckLatencyP99Micros();
+
+	long getAckLatencyP999Micros();
+
+	long getAckLatencyMaxMicros();
+
+	long getEndToEndLatencyP50Micros();
+
+	long getEndToEndLatencyP99Micros();
+
+	long getEndToEndLatencyP999Micros();
+
+	long getEndToEndLatencyMaxMicros();
+}
@@ -0,0 +1,117 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.qpid.jms.JmsConnection;
+import org.apache.qpid.jms.JmsConnectionListener;
+import org.apache.qpid.jms.message.JmsInboundMessageDispatch;
+
+/**
+ * Counts the qpid connection events of one client: an interruption when the
+ * failover transport loses the broker and a restoration when it has
+ * reconnected. With failover stats on, the events are also passed to a
+ * FailoverRecorder. qpid calls the listener on its connection thread, and
+ * onInboundMessage for every delivery, so the callbacks that are not used do
+ * nothing.
+ */
+public class AmqpConnectionEvents implements JmsConnectionListener {
+
+	private static final Log Trace = LogFactory.getLog(AmqpConnectionEvents.class);
+
+	private final String _clientIdStr;
+	private final AtomicLong _interruptions = new AtomicLong();
+	private final AtomicLong _restorations = new AtomicLong();
+	private volatile FailoverRecorder _failoverRecorder = null;
+
+	public AmqpConnectionEvents(String clientIdStr) {
+		_clientIdStr = clientIdStr;
+	}
+
+	/** Starts listening to the connection, if it is a qpid connection. */
+	public void attach(Connection connection) {
+		if (connection instanceof JmsConnection) {
+			((JmsConnection) connection).addConnectionListener(this);
+		}
+	}
+
+	public void detach(Connection connection) {
+		if (connection instanceof JmsConnection) {
+			((JmsConnection) connection).removeConnectionListener(this);
+		}
+	}
+
+	public void setFailoverRecorder(FailoverRecorder failoverRecorder) {
+		_failoverRecorder = failoverRecorder;
+	}
+
+	public long getInterruptions() {
+		return _interruptions.get();
+	}
+
+	public long getRestorations() {
+		return _restorations.get();
+	}
+
+	public void onConnectionInterrupted(URI remoteURI) {
+		_interruptions.incrementAndGet();
+		Trace.warn("CLIENT " + _clientIdStr + ": connection to " + remoteURI + " interrupted.");
+		FailoverRecorder recorder = _failoverRecorder;
+		if (recorder != null) {
+			recorder.onInterrupted(remoteURI);
+		}
+	}
+
+	public void onConnectionRestored(URI remoteURI) {
+		_restorations.incrementAndGet();
+		Trace.info("CLIENT " + _clientIdStr + ": connection restored to " + remoteURI + ".");
+		FailoverRecorder recorder = _failoverRecorder;
+		if (recorder != null) {
+			recorder.onRestored(remoteURI);
+		}
+	}
+
+	public void onConnectionEstablished(URI remoteURI) {
+	}
+
+	public void onConnectionFailure(Throwable error) {
+	}
+
+	public void onInboundMessage(JmsInboundMessageDispatch envelope) {
+	}
+
+	public void onSessionClosed(Session session, Throwable cause) {
+	}
+
+	public void onConsumerClosed(MessageConsumer consumer, Throwable cause) {
+	}
+
+	public void onProducerClosed(MessageProducer producer, Throwable cause) {
+	}
+
+	public void onRemoteDiscovery(List<URI> uris) {
+	}
+}
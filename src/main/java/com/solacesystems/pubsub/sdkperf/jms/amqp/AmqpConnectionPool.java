@@ -0,0 +1,255 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Lets many sdkperf clients share a few physical AMQP connections. Connections
+ * are keyed by the connection URI built by AmqpJmsSdkperfFactory and the
+ * username. Each client that leases a connection opens its own sessions on it,
+ * and a connection takes at most sessionsPerConnection clients before the pool
+ * opens another one. qpid runs one I/O thread per connection, so maxConnections
+ * caps the I/O threads: once it is reached, new clients go to the connection
+ * with the fewest clients instead. A connection is closed when its last client
+ * releases it. A connection that fails is taken out of the pool at once, so
+ * new clients get a new one while its current clients disconnect.
+ * <p>
+ * Connections are opened outside the pool lock, so clients connecting in
+ * parallel open their connections in parallel. A connection being opened is
+ * already in the pool, and clients given it wait for it to open.
+ */
+public class AmqpConnectionPool {
+
+	private static final Log Trace = LogFactory.getLog(AmqpConnectionPool.class);
+
+	private static final Map<String, List<PooledConnection>> _pools = new HashMap<String, List<PooledConnection>>();
+	private static int _connectionCount = 0;
+	private static int _sessionCount = 0;
+
+	private AmqpConnectionPool() {
+	}
+
+	public static PooledConnection lease(String uri, ConnectionFactory cf, String username, String password,
+			int sessionsPerConnection, int maxConnections, ExceptionListener listener) throws JMSException {
+		String key = uri + "|" + username;
+		PooledConnection pooled = null;
+		boolean opener = false;
+		synchronized (AmqpConnectionPool.class) {
+			List<PooledConnection> pool = _pools.get(key);
+			if (pool == null) {
+				pool = new ArrayList<PooledConnection>();
+				_pools.put(key, pool);
+			}
+
+			for (PooledConnection candidate : pool) {
+				if (candidate._leases < sessionsPerConnection) {
+					pooled = candidate;
+					break;
+				}
+			}
+			if (pooled == null && maxConnections > 0 && pool.size() >= maxConnections) {
+				for (PooledConnection candidate : pool) {
+					if (pooled == null || candidate._leases < pooled._leases) {
+						pooled = candidate;
+					}
+				}
+			}
+			if (pooled == null) {
+				// Reserve the connection, so clients arriving while it opens share it.
+				pooled = new PooledConnection(key);
+				pool.add(pooled);
+				opener = true;
+			}
+
+			pooled._leases++;
+			_sessionCount++;
+			if (listener != null) {
+				pooled._listeners.add(listener);
+			}
+		}
+
+		if (opener) {
+			open(pooled, cf, username, password);
+		} else {
+			pooled.awaitOpen();
+		}
+		return pooled;
+	}
+
+	private static void open(PooledConnection pooled, ConnectionFactory cf, String username, String password)
+			throws JMSException {
+		Connection connection = null;
+		JMSException error = null;
+		boolean started = false;
+		try {
+			connection = cf.createConnection(username, password);
+			connection.setExceptionListener(pooled);
+			connection.start();
+			started = true;
+		} catch (JMSException e) {
+			error = e;
+			throw e;
+		} finally {
+			if (!started) {
+				if (connection != null) {
+					try {
+						connection.close();
+					} catch (JMSException closeError) {
+						Trace.warn("Failed to close an AMQP connection that did not start.", closeError);
+					}
+				}
+				synchronized (AmqpConnectionPool.class) {
+					// Every client waiting for this connection fails its lease with it.
+					remove(pooled);
+					_sessionCount -= pooled._leases;
+					pooled._leases = 0;
+					pooled._listeners.clear();
+				}
+				pooled.failed((error != null) ? error : new JMSException("Failed to open an AMQP connection."));
+			}
+		}
+		synchronized (AmqpConnectionPool.class) {
+			_connectionCount++;
+			Trace.info("Opened pooled AMQP connection. " + getStats());
+		}
+		pooled.opened(connection);
+	}
+
+	public static synchronized void release(PooledConnection pooled, ExceptionListener listener) throws JMSException {
+		pooled._listeners.remove(listener);
+		pooled._leases--;
+		_sessionCount--;
+		if (pooled._leases > 0) {
+			return;
+		}
+
+		remove(pooled);
+		_connectionCount--;
+		try {
+			pooled.getConnection().close();
+		} finally {
+			Trace.info("Closed pooled AMQP connection. " + getStats());
+		}
+	}
+
+	/** Stops handing out a failed connection. Its clients still release it as usual. */
+	static synchronized void discard(PooledConnection pooled) {
+		if (remove(pooled)) {
+			Trace.info("Dropped failed pooled AMQP connection. " + getStats());
+		}
+	}
+
+	private static boolean remove(PooledConnection pooled) {
+		List<PooledConnection> pool = _pools.get(pooled._key);
+		if (pool == null || !pool.remove(pooled)) {
+			return false;
+		}
+		if (pool.isEmpty()) {
+			_pools.remove(pooled._key);
+		}
+		return true;
+	}
+
+	public static synchronized int getConnectionCount() {
+		return _connectionCount;
+	}
+
+	public static synchronized int getSessionCount() {
+		return _sessionCount;
+	}
+
+	public static synchronized String getStats() {
+		return "AMQP connection pool: " + _connectionCount + " connections, " + _sessionCount + " client sessions";
+	}
+
+	/**
+	 * A physical connection shared by several clients. Connection level errors
+	 * are passed on to every client using it, after the connection is dropped
+	 * from the pool.
+	 */
+	public static class PooledConnection implements ExceptionListener {
+
+		private final String _key;
+		private final Set<ExceptionListener> _listeners = new CopyOnWriteArraySet<ExceptionListener>();
+		private int _leases = 0;
+		// Set once by the client that opens the connection, guarded by this.
+		private Connection _connection = null;
+		private JMSException _openError = null;
+
+		PooledConnection(String key) {
+			_key = key;
+		}
+
+		public synchronized Connection getConnection() {
+			return _connection;
+		}
+
+		synchronized void opened(Connection connection) {
+			_connection = connection;
+			notifyAll();
+		}
+
+		synchronized void failed(JMSException error) {
+			_openError = error;
+			notifyAll();
+		}
+
+		/** Waits until the client that reserved this connection has opened it. */
+		synchronized void awaitOpen() throws JMSException {
+			boolean interrupted = false;
+			try {
+				while (_connection == null && _openError == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (_openError != null) {
+				JMSException e = new JMSException("Pooled AMQP connection failed to open: " + _openError.getMessage());
+				e.setLinkedException(_openError);
+				e.initCause(_openError);
+				throw e;
+			}
+		}
+
+		public void onException(JMSException exception) {
+			discard(this);
+			for (ExceptionListener listener : _listeners) {
+				listener.onException(exception);
+			}
+		}
+	}
+}
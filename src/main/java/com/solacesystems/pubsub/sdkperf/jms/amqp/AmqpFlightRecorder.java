@@ -0,0 +1,110 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Flight recorder hooks of a client. This class records nothing; with
+ * sdkperf.amqp.flightRecorder on, create() returns JfrFlightRecorder, which
+ * emits JDK Flight Recorder events. JfrFlightRecorder is only loaded by name
+ * once the JVM is known to have the jdk.jfr API, so the plugin still runs on
+ * Java 8 releases without it.
+ * <p>
+ * Per-message hooks return a token, or null when the message is not sampled,
+ * so the caller does no work for the messages that are not recorded.
+ */
+public class AmqpFlightRecorder {
+
+	private static final Log Trace = LogFactory.getLog(AmqpFlightRecorder.class);
+	private static final String JFR_RECORDER_CLASS = "com.solacesystems.pubsub.sdkperf.jms.amqp.JfrFlightRecorder";
+
+	public static final AmqpFlightRecorder NONE = new AmqpFlightRecorder();
+
+	protected AmqpFlightRecorder() {
+	}
+
+	/**
+	 * @param sampleInterval record one in this many publishes, acks and
+	 *            dispatches, 1 for all of them
+	 * @return a JFR recorder, or NONE if the JVM has no JFR
+	 */
+	public static AmqpFlightRecorder create(AmqpJmsClient client, String clientIdStr, int sampleInterval) {
+		if (sampleInterval < 1) {
+			throw new IllegalArgumentException("Flight recorder sample interval must be at least 1, got "
+					+ sampleInterval);
+		}
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (AmqpFlightRecorder) Class.forName(JFR_RECORDER_CLASS)
+					.getConstructor(AmqpJmsClient.class, String.class, int.class)
+					.newInstance(client, clientIdStr, sampleInterval);
+		} catch (Throwable t) {
+			Trace.warn("CLIENT " + clientIdStr + ": this JVM has no JDK Flight Recorder API, no events are recorded.");
+			if (Trace.isDebugEnabled()) {
+				Trace.debug("Failed to create the JFR recorder.", t);
+			}
+			return NONE;
+		}
+	}
+
+	/** @return a token for publishEnd() if this publish is sampled, else null */
+	public Object publishStart() {
+		return null;
+	}
+
+	public void publishEnd(Object token, int producerIndex, long outstanding) {
+	}
+
+	/** True if waits for publish window credit are recorded. */
+	public boolean wantWindowStalls() {
+		return false;
+	}
+
+	public void windowStalled(long waitNanos, int producerIndex, int windowSize) {
+	}
+
+	/** True if the ack of this message is sampled. */
+	public boolean sampleAck() {
+		return false;
+	}
+
+	public void acked(int producerIndex, long latencyNanos) {
+	}
+
+	public void sendFailed(int producerIndex, Exception e) {
+	}
+
+	public Object connectStart() {
+		return null;
+	}
+
+	public void connectEnd(Object token, boolean success) {
+	}
+
+	/** @return a token for dispatchEnd() if this delivery is sampled, else null */
+	public Object dispatchStart() {
+		return null;
+	}
+
+	public void dispatchEnd(Object token, String destination) {
+	}
+
+	/** Stops the periodic client stats event. */
+	public void close() {
+	}
+}
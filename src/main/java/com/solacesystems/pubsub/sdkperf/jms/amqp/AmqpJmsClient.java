@@ -16,17 +16,31 @@
 package com.solacesystems.pubsub.sdkperf.jms.amqp;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.jms.TemporaryQueue;
 import javax.jms.Topic;
 import javax.jms.TransactionRolledBackException;
 import javax.jms.XAConnectionFactory;
@@ -34,77 +48,357 @@ import javax.transaction.xa.XAException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.qpid.jms.message.JmsMessage;
 
-import com.solacesystems.jms.SolJmsUtility;
 import com.solacesystems.pubsub.sdkperf.config.EpConfigProperties;
 import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+import com.solacesystems.pubsub.sdkperf.core.AbstractWrappedMessage;
 import com.solacesystems.pubsub.sdkperf.core.BasicMsgRep;
 import com.solacesystems.pubsub.sdkperf.core.ChannelState;
 import com.solacesystems.pubsub.sdkperf.core.PubSubException;
+import com.solacesystems.pubsub.sdkperf.core.ToolData;
 import com.solacesystems.pubsub.sdkperf.core.TransactionRollbackException;
 import com.solacesystems.pubsub.sdkperf.jms.core.AbstractJmsClient;
 import com.solacesystems.pubsub.sdkperf.jms.core.BasicMessageListener;
+import com.solacesystems.pubsub.sdkperf.jms.core.JmsClientTransactedSession;
+import com.solacesystems.pubsub.sdkperf.jms.core.JmsClientXaSession;
+import com.solacesystems.pubsub.sdkperf.jms.core.JmsMessageReceiver;
 import com.solacesystems.pubsub.sdkperf.jms.core.JmsSdkperfFactory;
+import com.solacesystems.pubsub.sdkperf.jms.core.JmsMsgRep;
 import com.solacesystems.pubsub.sdkperf.jms.core.JmsSdkperfVersion;
+import com.solacesystems.pubsub.sdkperf.jms.core.JmsWrappedMessage;
+import com.solacesystems.pubsub.sdkperf.util.Timing;
 
 /**
  * Class for managing all activities of a single client. Handles all JMS
  * interactions.
  */
-public class AmqpJmsClient extends AbstractJmsClient {
+public class AmqpJmsClient extends AbstractJmsClient implements AmqpStatsReporter.Reportable,
+		FailoverRecorder.Counters {
 
 	private static final Log Trace = LogFactory.getLog(AmqpJmsClient.class);
 	public static final String CONNECTION_FACTORY_LOOKUP = "lookup";
+	private static final int DEFAULT_CONNECT_CONCURRENCY = 16;
+	// How long sdkperf's AbstractClientCollection.connect() waits for all clients to connect.
+	private static final long SDKPERF_CONNECT_WAIT_MSEC = 120000;
+	private static final int DEFAULT_TEMPLATE_RING_SIZE = 64;
+	private static final int DEFAULT_COMMIT_MAX_BATCH = 10000;
+	private static final long DEFAULT_COMMIT_TARGET_LATENCY_MSEC = 10;
+	private static final int DEFAULT_ACK_BATCH_SIZE = 100;
+	private static final int DEFAULT_FLIGHT_RECORDER_SAMPLE_INTERVAL = 1000;
+	private static final int DEFAULT_FAILOVER_RECOVERY_PERCENT = 90;
+	private static final int DEFAULT_REQUEST_OUTSTANDING = 1;
+	private static final long DEFAULT_REQUEST_TIMEOUT_MSEC = 10000;
+	private static final int DEFAULT_LARGE_MESSAGE_CHUNK_SIZE = 64 * 1024;
+	private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+	private static final byte[] NO_PAYLOAD = new byte[0];
 
 	private AmqpJmsSdkperfFactory sdkperfFactory = null;
+	protected AmqpPluginProperties _pluginProps = null;
+	// Only used when producers do not share _jmsSession / _jmsConnection.
+	protected Session[] _producerSessions = null;
+	protected Connection[] _producerConnections = null;
+	// Set when _jmsConnection is shared with other clients through AmqpConnectionPool.
+	protected AmqpConnectionPool.PooledConnection _pooledConnection = null;
+	// Binary publish state, built on the first binary publish: one reusable message
+	// per producer index and payload, and the destinations to rotate through.
+	// _binaryMsgs is written last, so a thread that sees it also sees _binaryDests.
+	private volatile Map<byte[], BytesMessage>[] _binaryMsgs = null;
+	private Destination[] _binaryDests = null;
+	// Set when sdkperf.amqp.messageTemplates is on: reusable messages and the
+	// publish thread's allocation per producer index.
+	private MessageTemplateRing[] _templateRings = null;
+	private ThreadAllocationMeter[] _pubAllocMeters = null;
+	private boolean _hasDestinationMaps = false;
+	// JNDI destination maps passed to the constructor, for consumers created here.
+	private Map<String, Queue> _destQueueMap = null;
+	private Map<String, Topic> _destTopicMap = null;
+	// Commit batching and stats for transacted publishing (-txs).
+	private CommitBatcher _commitBatcher = null;
+	private long _cntPublishedAtCommit = 0;
+	// Set when sdkperf.amqp.endToEndLatency is on: stamp sends and record latency on receive.
+	protected boolean _wantEndToEndLatency = false;
+	protected AmqpConnectionEvents _connectionEvents = null;
+	// Set when sdkperf.amqp.failoverStats is on: per producer publisher id and last sequence number.
+	private FailoverRecorder _failoverRecorder = null;
+	private String[] _failoverPubIds = null;
+	private long[] _failoverSeqs = null;
+	// Set when sdkperf.amqp.producerCacheSize is above 0: destination-bound producers per producer index.
+	private DestinationProducerCache[] _producerCaches = null;
+	// One per producer index. sdkperf runs a publish thread per index (-cpt), and
+	// sdkperf's publish path does not pass the index down to publishMessage(), so
+	// publishMsg() binds the index's context to the thread.
+	private PublishContext[] _publishContexts = null;
+	private final ThreadLocal<PublishContext> _currPublish = new ThreadLocal<PublishContext>();
+	// Set when sdkperf.amqp.requestReply is on: pending requests and the temporary queue replies come back on.
+	private RequestReplyTracker _requestTracker = null;
+	private Session _replySession = null;
+	private TemporaryQueue _replyQueue = null;
+	// Set in large message mode (sdkperf.amqp.largeMessageFile or largeMessageSize): the off-heap payload.
+	private LargeMessageSource _largeMessages = null;
+	// Compresses payloads with -z or sdkperf.amqp.compression, otherwise only restores compressed ones received.
+	private PayloadCompressor _compressor = null;
+	// JFR events with sdkperf.amqp.flightRecorder, otherwise hooks that record nothing.
+	private AmqpFlightRecorder _flightRecorder = AmqpFlightRecorder.NONE;
+	// Connect queued on ParallelConnector and not yet finished.
+	private Future<Void> _pendingConnect = null;
 
 	public AmqpJmsClient() {
 	}
 
 	public AmqpJmsClient(ConnectionFactory cf, Map<String, Queue> queueMap, Map<String, Topic> topicMap) {
 		super(cf, queueMap, topicMap);
+		_hasDestinationMaps = (queueMap != null || topicMap != null);
+		_destQueueMap = queueMap;
+		_destTopicMap = topicMap;
+	}
+
+	@Override
+	public void init(RuntimeProperties perfProps, int clientIdInt) throws Exception {
+		_pluginProps = new AmqpPluginProperties(perfProps);
+		super.init(perfProps, clientIdInt);
+		// The stats and metrics threads copy the consumer list while sdkperf adds and removes consumers.
+		_consumersList = Collections.synchronizedList(_consumersList);
+		_connectionEvents = new AmqpConnectionEvents(_clientIdStr);
+		checkConnectRamp(perfProps);
+		_publishContexts = new PublishContext[_producers.length];
+		for (int i = 0; i < _producers.length; ++i) {
+			_publishContexts[i] = new PublishContext(i);
+		}
+
+		if (_pluginProps.getBoolean(AmqpPluginProperties.MESSAGE_TEMPLATES, false)) {
+			int pubWindowSize = _pluginProps.getInt(AmqpPluginProperties.PUB_WINDOW_SIZE, 0);
+			int ringSize = _pluginProps.getInt(AmqpPluginProperties.TEMPLATE_RING_SIZE,
+					Math.max(DEFAULT_TEMPLATE_RING_SIZE, pubWindowSize + 1));
+			if (pubWindowSize > 0 && ringSize <= pubWindowSize) {
+				Trace.warn("CLIENT " + _clientIdStr + ": message template ring of " + ringSize
+						+ " is not larger than the publish window of " + pubWindowSize
+						+ ", templates still in flight will be rebuilt.");
+			}
+			_templateRings = new MessageTemplateRing[_producers.length];
+			_pubAllocMeters = new ThreadAllocationMeter[_producers.length];
+			for (int i = 0; i < _producers.length; ++i) {
+				_templateRings[i] = new MessageTemplateRing(ringSize);
+				_pubAllocMeters[i] = new ThreadAllocationMeter();
+			}
+		}
+
+		_wantEndToEndLatency = _pluginProps.getBoolean(AmqpPluginProperties.END_TO_END_LATENCY, false);
+		if (_wantEndToEndLatency) {
+			EndToEndLatency.startSeries();
+		}
+
+		if (_pluginProps.getBoolean(AmqpPluginProperties.FAILOVER_STATS, false)) {
+			_failoverRecorder = new FailoverRecorder(_clientIdStr, this,
+					_pluginProps.getInt(AmqpPluginProperties.FAILOVER_RECOVERY_PERCENT, DEFAULT_FAILOVER_RECOVERY_PERCENT));
+			_connectionEvents.setFailoverRecorder(_failoverRecorder);
+			_failoverPubIds = new String[_producers.length];
+			_failoverSeqs = new long[_producers.length];
+			for (int i = 0; i < _producers.length; ++i) {
+				_failoverPubIds[i] = _clientIdStr + "/" + i;
+			}
+		}
+
+		if (_pluginProps.getBoolean(AmqpPluginProperties.REQUEST_REPLY, false)) {
+			_requestTracker = new RequestReplyTracker(
+					_pluginProps.getInt(AmqpPluginProperties.REQUEST_OUTSTANDING, DEFAULT_REQUEST_OUTSTANDING),
+					_pluginProps.getLong(AmqpPluginProperties.REQUEST_TIMEOUT_MSEC, DEFAULT_REQUEST_TIMEOUT_MSEC));
+		}
+
+		String largeMessageFile = _pluginProps.getString(AmqpPluginProperties.LARGE_MESSAGE_FILE, null);
+		int largeMessageSize = _pluginProps.getInt(AmqpPluginProperties.LARGE_MESSAGE_SIZE, 0);
+		int chunkSize = _pluginProps.getInt(AmqpPluginProperties.LARGE_MESSAGE_CHUNK_SIZE,
+				DEFAULT_LARGE_MESSAGE_CHUNK_SIZE);
+		if (largeMessageFile != null) {
+			_largeMessages = LargeMessageSource.mapFile(largeMessageFile, chunkSize);
+		} else if (largeMessageSize > 0) {
+			_largeMessages = LargeMessageSource.allocate(largeMessageSize, chunkSize);
+		}
+		if (_largeMessages != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": large message mode, " + _largeMessages.getSize()
+					+ " byte messages from " + _largeMessages.getDescription() + ".");
+		}
+
+		Integer compressionLevel = perfProps.getIntegerProperty(RuntimeProperties.CLIENT_COMPRESSION_LEVEL);
+		String codec = _pluginProps.getString(AmqpPluginProperties.COMPRESSION, null);
+		int level = -1;
+		if (compressionLevel != null && compressionLevel > 0) {
+			level = compressionLevel;
+		} else if (codec != null && compressionLevel == null) {
+			level = DEFAULT_COMPRESSION_LEVEL;
+		}
+		_compressor = new PayloadCompressor((codec == null) ? PayloadCompressor.DEFLATE : codec, level);
+		if (_compressor.isCompressing() && _largeMessages != null) {
+			Trace.warn("CLIENT " + _clientIdStr + ": payloads are not compressed in large message mode.");
+		}
+
+		if (_pluginProps.getBoolean(AmqpPluginProperties.FLIGHT_RECORDER, false)) {
+			_flightRecorder = AmqpFlightRecorder.create(this, _clientIdStr, _pluginProps.getInt(
+					AmqpPluginProperties.FLIGHT_RECORDER_SAMPLE_INTERVAL, DEFAULT_FLIGHT_RECORDER_SAMPLE_INTERVAL));
+		}
+
+		Integer transactionSize = perfProps.getIntegerProperty(RuntimeProperties.AD_TRANSACTION_SIZE);
+		if (transactionSize != null && transactionSize > 0) {
+			_commitBatcher = new CommitBatcher(_pluginProps.getBoolean(AmqpPluginProperties.ADAPTIVE_COMMIT, false),
+					transactionSize, _pluginProps.getInt(AmqpPluginProperties.COMMIT_MIN_BATCH, 1),
+					_pluginProps.getInt(AmqpPluginProperties.COMMIT_MAX_BATCH, DEFAULT_COMMIT_MAX_BATCH),
+					_pluginProps.getLong(AmqpPluginProperties.COMMIT_TARGET_LATENCY_MSEC, DEFAULT_COMMIT_TARGET_LATENCY_MSEC),
+					_pluginProps.getLong(AmqpPluginProperties.COMMIT_WINDOW_MSEC, 0));
+		}
 	}
 
 	@Override
 	protected ConnectionFactory setupConnectionFactory() throws Exception {
+		long start = System.nanoTime();
 		ConnectionFactory jmsCf = (ConnectionFactory) _initialContext.lookup(CONNECTION_FACTORY_LOOKUP);
+		ConnectMetrics.record(ConnectMetrics.Step.JNDI_LOOKUP, System.nanoTime() - start);
 		return jmsCf;
 	}
 
+	/**
+	 * With parallel connect enabled the first call only queues the connect on
+	 * ParallelConnector and returns; sdkperf then waits for every client to
+	 * report connected. A later call made while the connect is still queued
+	 * or running waits for it and throws its error.
+	 */
 	@Override
 	public void connect() throws Exception {
 		if (isConnected()) {
 			return;
 		}
 
+		int concurrency = getConnectConcurrency();
+		if (concurrency <= 1) {
+			connectNow();
+			return;
+		}
+
+		Future<Void> pending;
+		synchronized (this) {
+			if (_pendingConnect == null) {
+				_channelState = ChannelState.CLIENT_STATE_CONNECTING;
+				_pendingConnect = ParallelConnector.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						try {
+							connectNow();
+						} catch (Exception e) {
+							// sdkperf only sees that the client never connected, so keep the cause for it.
+							updateLastErrorResponse(e);
+							_channelState = ChannelState.CLIENT_STATE_DISCONNECTED;
+							Trace.error("CLIENT " + _clientIdStr + ": Parallel connect failed.", e);
+							throw e;
+						} finally {
+							synchronized (AmqpJmsClient.this) {
+								_pendingConnect = null;
+							}
+						}
+						return null;
+					}
+				}, concurrency, _pluginProps.getInt(AmqpPluginProperties.CONNECT_RAMP_PER_SEC, 0));
+				return;
+			}
+			pending = _pendingConnect;
+		}
+
+		try {
+			pending.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * sdkperf gives up with "Unable to start all clients" once its connect
+	 * wait runs out, so a connect ramp too slow for the number of clients is
+	 * refused up front instead.
+	 */
+	private void checkConnectRamp(RuntimeProperties perfProps) {
+		int rampPerSec = _pluginProps.getInt(AmqpPluginProperties.CONNECT_RAMP_PER_SEC, 0);
+		Integer numClients = perfProps.getIntegerProperty(RuntimeProperties.NUM_CLIENTS);
+		if (rampPerSec <= 0 || numClients == null || getConnectConcurrency() <= 1) {
+			return;
+		}
+		long rampMsec = numClients * 1000L / rampPerSec;
+		if (rampMsec >= SDKPERF_CONNECT_WAIT_MSEC) {
+			throw new IllegalArgumentException(AmqpPluginProperties.CONNECT_RAMP_PER_SEC + "=" + rampPerSec
+					+ " takes " + (rampMsec / 1000) + " s to start " + numClients
+					+ " clients, longer than the " + (SDKPERF_CONNECT_WAIT_MSEC / 1000)
+					+ " s sdkperf waits for them to connect. Use at least "
+					+ (numClients * 1000L / SDKPERF_CONNECT_WAIT_MSEC + 1) + ".");
+		}
+	}
+
+	private int getConnectConcurrency() {
+		Boolean nonBlocking = _rxProps.getBooleanProperty(RuntimeProperties.WANT_NON_BLOCKING_CONNECT);
+		int defaultConcurrency = (nonBlocking != null && nonBlocking) ? DEFAULT_CONNECT_CONCURRENCY : 1;
+		return _pluginProps.getInt(AmqpPluginProperties.CONNECT_CONCURRENCY, defaultConcurrency);
+	}
+
+	private void connectNow() throws Exception {
+		boolean success = false;
+		Object connectEvent = _flightRecorder.connectStart();
+		try {
+			doConnect();
+			success = true;
+		} finally {
+			if (connectEvent != null) {
+				_flightRecorder.connectEnd(connectEvent, success);
+			}
+			Integer numClients = _rxProps.getIntegerProperty(RuntimeProperties.NUM_CLIENTS);
+			ConnectMetrics.connectDone(success, (numClients == null) ? 1 : numClients);
+		}
+	}
+
+	private void doConnect() throws Exception {
 		boolean isTransacted = false;
 
 		if (Trace.isDebugEnabled()) {
 			Trace.debug("AmqpJmsClient - connect() was called.");
 		}
 		
+		long connectStart = System.nanoTime();
+		long stepStart = connectStart;
 		try {
 			String username = _rxProps.getStringProperty(RuntimeProperties.CLIENT_USERNAME);
 			String password = _rxProps.getStringProperty(RuntimeProperties.CLIENT_PASSWORD);
-			_jmsConnection = _cf.createConnection(username, password);
-			
-			if (!_rxProps.getStringProperty(RuntimeProperties.CLIENT_NAME_PREFIX).equals(""))
-				_jmsConnection.setClientID(_clientIdStr);
-			
-			if (_wantOnExceptionListener)
-				_jmsConnection.setExceptionListener(this);
+			int ioThreads = _pluginProps.getInt(AmqpPluginProperties.IO_THREADS, 0);
+			if (_pluginProps.getBoolean(AmqpPluginProperties.CONNECTION_POOL, false) || ioThreads > 0) {
+				// The client ID belongs to the shared connection, so it is not set per client.
+				_pooledConnection = AmqpConnectionPool.lease(AmqpJmsSdkperfFactory.getConnectionUri(_initialContext),
+						_cf, username, password,
+						_pluginProps.getInt(AmqpPluginProperties.POOL_SESSIONS_PER_CONNECTION, 100), ioThreads,
+						_wantOnExceptionListener ? this : null);
+				_jmsConnection = _pooledConnection.getConnection();
+				_connectionEvents.attach(_jmsConnection);
+				stepStart = recordStep(ConnectMetrics.Step.CREATE_CONNECTION, stepStart);
+			} else {
+				_jmsConnection = _cf.createConnection(username, password);
+				stepStart = recordStep(ConnectMetrics.Step.CREATE_CONNECTION, stepStart);
+				
+				if (!_rxProps.getStringProperty(RuntimeProperties.CLIENT_NAME_PREFIX).equals(""))
+					_jmsConnection.setClientID(_clientIdStr);
+				
+				if (_wantOnExceptionListener)
+					_jmsConnection.setExceptionListener(this);
+				_connectionEvents.attach(_jmsConnection);
 
-			_jmsConnection.start();
+				_jmsConnection.start();
+				stepStart = recordStep(ConnectMetrics.Step.START_CONNECTION, stepStart);
+			}
 			
-			_jmsSession = _jmsConnection.createSession(isTransacted, Session.AUTO_ACKNOWLEDGE);
+			_jmsSession = _jmsConnection.createSession(isTransacted, getConsumerAckMode());
+			stepStart = recordStep(ConnectMetrics.Step.CREATE_SESSION, stepStart);
 
-			for (int i = 0; i < _producers.length; ++i) {
-				_producers[i] = _jmsSession.createProducer(null);
-			}
+			createProducers(username, password, isTransacted);
+			createProducerCaches();
 
 			_defaultProducer = _producers[0];
 
 			configureProducer(_defaultProducer, _rxProps);
+			stepStart = recordStep(ConnectMetrics.Step.CREATE_PRODUCERS, stepStart);
 
 			reconnectToFlows();
 
@@ -119,9 +413,469 @@ public class AmqpJmsClient extends AbstractJmsClient {
 			_tempQueueMsgConsumer.setMessageListener(new BasicMessageListener(this, _tempQueueReplyTo
 					.getQueueName(), false, null, true, null, _tempQueueMsgConsumer));
 		}
+		if (_requestTracker != null && _replySession == null) {
+			createReplyQueue();
+		}
+		recordStep(ConnectMetrics.Step.CREATE_CONSUMERS, stepStart);
+		recordStep(ConnectMetrics.Step.TOTAL, connectStart);
 
 		_channelState = ChannelState.CLIENT_STATE_CONNECTED;
 
+		AmqpStatsReporter.register(this, _pluginProps.getInt(AmqpPluginProperties.STATS_INTERVAL_SEC, 0));
+		AmqpMetricsExporter.register(this, _pluginProps);
+		if (_failoverRecorder != null) {
+			_failoverRecorder.start();
+		}
+	}
+
+	/** Session acknowledge mode for consumers, from sdkperf.amqp.consumerAckMode. */
+	private int getConsumerAckMode() {
+		String mode = _pluginProps.getString(AmqpPluginProperties.CONSUMER_ACK_MODE, "auto");
+		if (mode.equalsIgnoreCase("auto")) {
+			return Session.AUTO_ACKNOWLEDGE;
+		} else if (mode.equalsIgnoreCase("client")) {
+			return Session.CLIENT_ACKNOWLEDGE;
+		} else if (mode.equalsIgnoreCase("dups_ok")) {
+			return Session.DUPS_OK_ACKNOWLEDGE;
+		}
+		throw new IllegalArgumentException("Plugin property " + AmqpPluginProperties.CONSUMER_ACK_MODE
+				+ " must be auto, client or dups_ok, got \"" + mode + "\"");
+	}
+
+	private static long recordStep(ConnectMetrics.Step step, long stepStart) {
+		long now = System.nanoTime();
+		ConnectMetrics.record(step, now - stepStart);
+		return now;
+	}
+
+	/**
+	 * Creates one producer per producer index. By default they all come from
+	 * _jmsSession. With sessionPerProducer each index gets its own session and
+	 * with connectionPerProducer its own connection as well, so publishers on
+	 * one client no longer serialize on a single session lock. If one index
+	 * fails, the sessions and connections opened so far are closed again.
+	 */
+	private void createProducers(String username, String password, boolean isTransacted) throws JMSException {
+		boolean connectionPerProducer = _pluginProps.getBoolean(AmqpPluginProperties.CONNECTION_PER_PRODUCER, false);
+		boolean sessionPerProducer = connectionPerProducer
+				|| _pluginProps.getBoolean(AmqpPluginProperties.SESSION_PER_PRODUCER, false);
+
+		if (!sessionPerProducer) {
+			for (int i = 0; i < _producers.length; ++i) {
+				_producers[i] = _jmsSession.createProducer(null);
+			}
+			return;
+		}
+
+		_producerSessions = new Session[_producers.length];
+		if (connectionPerProducer) {
+			_producerConnections = new Connection[_producers.length];
+		}
+		boolean created = false;
+		try {
+			for (int i = 0; i < _producers.length; ++i) {
+				Connection connection = _jmsConnection;
+				if (connectionPerProducer) {
+					connection = _cf.createConnection(username, password);
+					_producerConnections[i] = connection;
+					if (!_rxProps.getStringProperty(RuntimeProperties.CLIENT_NAME_PREFIX).equals(""))
+						connection.setClientID(_clientIdStr + "-p" + i);
+					if (_wantOnExceptionListener)
+						connection.setExceptionListener(this);
+					_connectionEvents.attach(connection);
+					connection.start();
+				}
+				_producerSessions[i] = ((AmqpJmsSdkperfFactory) getJmsFactory()).createProducerSession(connection,
+						isTransacted);
+				_producers[i] = _producerSessions[i].createProducer(null);
+			}
+			created = true;
+		} finally {
+			if (!created) {
+				closeProducerSessions();
+			}
+		}
+	}
+
+	/**
+	 * Closes the sessions and connections of sessionPerProducer and
+	 * connectionPerProducer, and with them their producers.
+	 */
+	private void closeProducerSessions() {
+		if (_producerSessions != null) {
+			for (int i = 0; i < _producerSessions.length; ++i) {
+				if (_producerSessions[i] != null) {
+					try {
+						_producerSessions[i].close();
+					} catch (JMSException e) {
+						Trace.warn("CLIENT " + _clientIdStr + ": failed to close the session of producer " + i + ".", e);
+					}
+					_producers[i] = null;
+				}
+			}
+			_producerSessions = null;
+		}
+		if (_producerConnections != null) {
+			for (int i = 0; i < _producerConnections.length; ++i) {
+				if (_producerConnections[i] != null) {
+					_connectionEvents.detach(_producerConnections[i]);
+					try {
+						_producerConnections[i].close();
+					} catch (JMSException e) {
+						Trace.warn("CLIENT " + _clientIdStr + ": failed to close the connection of producer " + i
+								+ ".", e);
+					}
+				}
+			}
+			_producerConnections = null;
+		}
+	}
+
+	/**
+	 * With producerCacheSize set, each producer index also keeps producers
+	 * bound to the destinations it publishes to, on the same session as its
+	 * anonymous producer, so sends to many destinations reuse sender links.
+	 */
+	private void createProducerCaches() {
+		int cacheSize = _pluginProps.getInt(AmqpPluginProperties.PRODUCER_CACHE_SIZE, 0);
+		if (cacheSize <= 0) {
+			return;
+		}
+		_producerCaches = new DestinationProducerCache[_producers.length];
+		for (int i = 0; i < _producers.length; ++i) {
+			_producerCaches[i] = new DestinationProducerCache(
+					(_producerSessions != null) ? _producerSessions[i] : _jmsSession, cacheSize);
+		}
+	}
+
+	/**
+	 * The producer to send msg to dest on: from the producer cache of
+	 * producerIndex when there is one, or prod itself. Each cache is only
+	 * used by the publish thread of its index. Sends through a transacted session's producer
+	 * bypass the cache, so they stay in that session's transaction.
+	 */
+	protected MessageProducer getBoundProducer(int producerIndex, MessageProducer prod, Destination dest)
+			throws JMSException {
+		if (_producerCaches == null || dest == null || prod != _producers[producerIndex]) {
+			return prod;
+		}
+		return _producerCaches[producerIndex].get(dest, prod);
+	}
+
+	@Override
+	public void stop() throws Exception {
+		if (_pooledConnection != null) {
+			// Stopping a shared connection would pause delivery for every client on it.
+			if (Trace.isDebugEnabled()) {
+				Trace.debug("CLIENT " + _clientIdStr + ": stop() ignored on pooled connection.");
+			}
+			return;
+		}
+		super.stop();
+	}
+
+	/**
+	 * Opens the session and temporary queue that replies to this client's
+	 * requests come back on. Replies are matched to their request on the
+	 * session's own delivery thread.
+	 */
+	private void createReplyQueue() throws JMSException {
+		_replySession = _jmsConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		_replyQueue = _replySession.createTemporaryQueue();
+		MessageConsumer consumer = _replySession.createConsumer(_replyQueue);
+		consumer.setMessageListener(new MessageListener() {
+			public void onMessage(Message reply) {
+				onReply(reply);
+			}
+		});
+	}
+
+	private void onReply(Message reply) {
+		try {
+			if (reply.propertyExists(RequestReplyTracker.REQUEST_ID_PROPERTY)) {
+				_requestTracker.onReply(reply.getLongProperty(RequestReplyTracker.REQUEST_ID_PROPERTY));
+			} else {
+				_requestTracker.onUnmatchedReply();
+			}
+		} catch (JMSException e) {
+			Trace.warn("CLIENT " + _clientIdStr + ": failed to read the request id of a reply.", e);
+		}
+	}
+
+	@Override
+	public void disconnect() throws Exception {
+		AmqpStatsReporter.unregister(this);
+		AmqpMetricsExporter.unregister(this);
+		_flightRecorder.close();
+		if (_failoverRecorder != null) {
+			_failoverRecorder.stop();
+		}
+		if (_requestTracker != null && _replySession != null) {
+			if (!_requestTracker.awaitReplies()) {
+				Trace.warn("CLIENT " + _clientIdStr + ": requests still without a reply after the request timeout.");
+			}
+			Trace.info("CLIENT " + _clientIdStr + ": " + _requestTracker.getTotalStats());
+			try {
+				_replySession.close();
+			} catch (JMSException e) {
+				Trace.warn("CLIENT " + _clientIdStr + ": failed to close the reply session.", e);
+			}
+			_replySession = null;
+			_replyQueue = null;
+		}
+		if (_templateRings != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + getTemplateStats());
+		}
+		if (_largeMessages != null && _largeMessages.getMessages() > 0) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + _largeMessages.getTotalStats());
+		}
+		if (_compressor.getCompressed() > 0 || _compressor.getDecompressed() > 0) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + _compressor.getTotalStats());
+		}
+		if (_producerCaches != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + getProducerCacheStats(_producerCaches));
+			for (DestinationProducerCache cache : _producerCaches) {
+				cache.close();
+			}
+			_producerCaches = null;
+		}
+		try {
+			commitPendingBatch();
+		} catch (Exception e) {
+			Trace.warn("CLIENT " + _clientIdStr + ": failed to commit the last transaction batch.", e);
+		}
+		if (_commitBatcher != null && _commitBatcher.getCommits() > 0) {
+			Trace.info("CLIENT " + _clientIdStr + ": transactions total: " + _commitBatcher.getTotalStats());
+		}
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			listener.flushAcks();
+			if (listener.getReceived() > 0) {
+				Trace.info("CLIENT " + _clientIdStr + ": " + listener.getTotalStats());
+			}
+		}
+		if (_pooledConnection != null) {
+			// Keep super.disconnect() from closing the shared connection, so the
+			// sessions it would close along with the connection are closed here.
+			closeTransactedSessions();
+			_connectionEvents.detach(_jmsConnection);
+			_jmsConnection = null;
+		}
+		super.disconnect();
+
+		closeProducerSessions();
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			closeConsumerSession(listener);
+		}
+		if (_pooledConnection != null) {
+			AmqpConnectionPool.release(_pooledConnection, this);
+			_pooledConnection = null;
+		}
+		_binaryMsgs = null;
+		_binaryDests = null;
+	}
+
+	/**
+	 * Closes the client's transacted and XA sessions. super.disconnect() only
+	 * forgets them, leaving them to be closed with the connection.
+	 */
+	private void closeTransactedSessions() {
+		for (JmsClientTransactedSession session : _transactedSessions.values()) {
+			try {
+				session.getTransactedSession().close();
+			} catch (JMSException e) {
+				Trace.warn("CLIENT " + _clientIdStr + ": failed to close a transacted session.", e);
+			}
+		}
+		for (JmsClientXaSession session : _xaSessions.values()) {
+			try {
+				session.getXaSession().close();
+			} catch (JMSException e) {
+				Trace.warn("CLIENT " + _clientIdStr + ": failed to close an XA session.", e);
+			}
+		}
+	}
+
+	@Override
+	public void resetStats() {
+		super.resetStats();
+		_cntPublishedAtCommit = 0;
+		if (_commitBatcher != null) {
+			_commitBatcher.resetStats();
+		}
+		if (_requestTracker != null) {
+			_requestTracker.resetStats();
+		}
+		if (_largeMessages != null) {
+			_largeMessages.resetStats();
+		}
+		if (_compressor != null) {
+			_compressor.resetStats();
+		}
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			listener.resetStats();
+		}
+	}
+
+	/**
+	 * Called from the shared stats thread while connected. Subclasses log the
+	 * stats they keep for the last interval.
+	 */
+	public void reportIntervalStats() {
+		if (_templateRings != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + getTemplateStats());
+		}
+		DestinationProducerCache[] producerCaches = _producerCaches;
+		if (producerCaches != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + getProducerCacheStats(producerCaches));
+		}
+		if (_commitBatcher != null && _commitBatcher.getCommits() > 0) {
+			Trace.info("CLIENT " + _clientIdStr + ": transactions interval: " + _commitBatcher.getIntervalStats());
+		}
+		if (_requestTracker != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + _requestTracker.getIntervalStats());
+		}
+		if (_largeMessages != null) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + _largeMessages.getIntervalStats());
+		}
+		if (_compressor.getCompressed() > 0 || _compressor.getDecompressed() > 0) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + _compressor.getIntervalStats());
+		}
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			Trace.info("CLIENT " + _clientIdStr + ": " + listener.getIntervalStats());
+		}
+	}
+
+	/** Messages published since the last stats reset. */
+	public long getPublished() {
+		return _cntPublished;
+	}
+
+	/** Messages received by all consumers since the last stats reset. */
+	public long getReceived() {
+		long received = 0;
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			received += listener.getReceived();
+		}
+		return received;
+	}
+
+	/** End-to-end latency across all consumers, null when not in end-to-end latency mode. */
+	public LatencyHistogram.Snapshot getEndToEndLatency() {
+		if (!_wantEndToEndLatency) {
+			return null;
+		}
+		LatencyHistogram.Snapshot total = null;
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			total = (total == null) ? listener.getEndToEndLatency() : total.add(listener.getEndToEndLatency());
+		}
+		return total;
+	}
+
+	public AmqpConnectionEvents getConnectionEvents() {
+		return _connectionEvents;
+	}
+
+	/** Null unless sdkperf.amqp.failoverStats is on. */
+	public FailoverRecorder getFailoverRecorder() {
+		return _failoverRecorder;
+	}
+
+	/** The message template ring of a producer index, or null without sdkperf.amqp.messageTemplates. */
+	public MessageTemplateRing getTemplateRing(int producerIndex) {
+		return (_templateRings != null) ? _templateRings[producerIndex] : null;
+	}
+
+	/** The producer cache of a producer index, or null without sdkperf.amqp.producerCacheSize. */
+	public DestinationProducerCache getProducerCache(int producerIndex) {
+		DestinationProducerCache[] producerCaches = _producerCaches;
+		return (producerCaches == null) ? null : producerCaches[producerIndex];
+	}
+
+	/** The pending requests and round-trip stats in request/reply mode, otherwise null. */
+	public RequestReplyTracker getRequestReplyTracker() {
+		return _requestTracker;
+	}
+
+	/** The flight recorder hooks, AmqpFlightRecorder.NONE unless sdkperf.amqp.flightRecorder is on. */
+	public AmqpFlightRecorder getFlightRecorder() {
+		return _flightRecorder;
+	}
+
+	public PayloadCompressor getCompressor() {
+		return _compressor;
+	}
+
+	/** The payload and throughput stats in large message mode, otherwise null. */
+	public LargeMessageSource getLargeMessageSource() {
+		return _largeMessages;
+	}
+
+	/** Async sends completed with an error, 0 for clients that send synchronously. */
+	public long getAsyncSendsFailed() {
+		return 0;
+	}
+
+	public long getLost() {
+		long lost = 0;
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			lost += listener.getLost();
+		}
+		return lost;
+	}
+
+	public long getDuplicates() {
+		long duplicates = 0;
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			duplicates += listener.getDuplicates();
+		}
+		return duplicates;
+	}
+
+	public long getRedelivered() {
+		long redelivered = 0;
+		for (AmqpMessageListener listener : getAmqpListeners()) {
+			redelivered += listener.getRedelivered();
+		}
+		return redelivered;
+	}
+
+	/**
+	 * Template reuse counts, and the allocation per message since the last
+	 * call of each producer index's publish thread.
+	 */
+	private String getTemplateStats() {
+		long reused = 0;
+		long built = 0;
+		for (MessageTemplateRing ring : _templateRings) {
+			reused += ring.getReused();
+			built += ring.getBuilt();
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("message templates reused=").append(reused).append(", built=").append(built)
+				.append(", publisher allocation=");
+		for (int i = 0; i < _pubAllocMeters.length; ++i) {
+			long bytesPerMsg = _pubAllocMeters[i].bytesPerMsgSinceLast();
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append((bytesPerMsg < 0) ? "n/a" : String.valueOf(bytesPerMsg));
+		}
+		return sb.append(" bytes/msg").toString();
+	}
+
+	private static String getProducerCacheStats(DestinationProducerCache[] producerCaches) {
+		long hits = 0;
+		long attaches = 0;
+		long evictions = 0;
+		int open = 0;
+		for (DestinationProducerCache cache : producerCaches) {
+			hits += cache.getHits();
+			attaches += cache.getAttaches();
+			evictions += cache.getEvictions();
+			open += cache.getOpen();
+		}
+		return "producer cache hits=" + hits + ", link attaches=" + attaches + ", evictions=" + evictions
+				+ ", open producers=" + open;
 	}
 
 	@Override
@@ -136,10 +890,14 @@ public class AmqpJmsClient extends AbstractJmsClient {
 		}
 	}
 
+	/**
+	 * Names transacted sessions for sdkperf's session map. qpid sessions have
+	 * no public name, and a null name left -ats publishers without a
+	 * transacted session.
+	 */
 	@Override
 	protected String getSessionName(Session session) {
-		Trace.warn("getSessionName() not implemented.");
-		return null;
+		return _clientIdStr + "/session-" + Integer.toHexString(System.identityHashCode(session));
 	}
 
 	@Override
@@ -149,35 +907,390 @@ public class AmqpJmsClient extends AbstractJmsClient {
 		}
 	}
 
+	/**
+	 * With message templates on, a BytesMessage is built once per ring slot
+	 * and payload, with the custom properties, correlation ID and reply-to
+	 * already set, and resent. Only the tool data properties (sequence number
+	 * and latency timestamp) are written per send. Anything a template cannot
+	 * carry (XML payloads, tool data inside the payload, destination maps)
+	 * goes through the generic sdkperf path.
+	 */
 	@Override
-	protected void publishBinarySmfMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+	protected void publishNormalMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+		if (_largeMessages != null) {
+			publishLargeMsg(msgRep, pubSessionIndex);
+			return;
+		}
+		if ((_templateRings == null && !_compressor.isCompressing()) || msgRep.getXmlBytes() != null
+				|| _hasDestinationMaps || (_txToolDataProps.WANT_TOOL_DATA && !_wantUserPropToolData)) {
+			super.publishNormalMsg(msgRep, pubSessionIndex);
+			return;
+		}
+		if (_compressor.isCompressing()) {
+			publishCompressedMsg(msgRep, pubSessionIndex);
+			return;
+		}
+		ThreadAllocationMeter allocMeter = _pubAllocMeters[pubSessionIndex];
+		allocMeter.bindToCurrentThread();
 
-		Trace.error("publishBinarySmfMsg() not supported in AmqpJmsClient.");
+		MessageTemplateRing ring = _templateRings[pubSessionIndex];
+		byte[] payload = msgRep.getAttachmentBytes();
+		BytesMessage jmsMessage = ring.next(payload);
+		if (jmsMessage != null && ((JmsMessage) jmsMessage).isReadOnly()) {
+			// qpid keeps a message read-only until its send settles, and without
+			// tool data nothing else written here would notice.
+			ring.reuseFailed();
+			jmsMessage = null;
+		}
+		if (jmsMessage == null) {
+			jmsMessage = buildTemplate(msgRep, payload);
+			ring.replace(jmsMessage, payload);
+		}
+		setPerSendProperties(msgRep, jmsMessage);
+		publishToMsgRepDest(msgRep, pubSessionIndex, jmsMessage);
+		allocMeter.onSent();
+	}
 
-		if (msgRep.getSmfBytes() == null) {
-			throw new PubSubException("CLIENT " + _clientIdStr + ": Error trying to publish binary message (null).");
+	/**
+	 * Large message mode: every send gets a new BytesMessage with the payload
+	 * copied in from the LargeMessageSource, and the client drops it once it
+	 * is sent, so at most the messages in flight are on the heap. The payload
+	 * of msgRep (-msa) is not used.
+	 */
+	private void publishLargeMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+		BytesMessage jmsMessage = buildTemplate(msgRep, null);
+		PublishContext ctx = _publishContexts[pubSessionIndex];
+		if (ctx._largeMessageChunk == null) {
+			ctx._largeMessageChunk = _largeMessages.newChunk();
 		}
+		_largeMessages.writeTo(jmsMessage, ctx._largeMessageChunk);
+		setPerSendProperties(msgRep, jmsMessage);
+		publishToMsgRepDest(msgRep, pubSessionIndex, jmsMessage);
+		_largeMessages.onSent();
+	}
+
+	/**
+	 * Compresses the payload into a new BytesMessage on every send, so the
+	 * compression CPU time is paid per message as an application would.
+	 * Message templates are not used while compressing.
+	 */
+	private void publishCompressedMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+		BytesMessage jmsMessage = buildTemplate(msgRep, null);
+		byte[] payload = msgRep.getAttachmentBytes();
+		_compressor.writeCompressed((payload != null) ? payload : NO_PAYLOAD, jmsMessage);
+		setPerSendProperties(msgRep, jmsMessage);
+		publishToMsgRepDest(msgRep, pubSessionIndex, jmsMessage);
+	}
 
-		Message jmsMessage = SolJmsUtility.fromByteArray(msgRep.getSmfBytes());
+	private void publishToMsgRepDest(BasicMsgRep msgRep, int pubSessionIndex, Message jmsMessage) throws Exception {
+		Destination dest = _wantJndi ? ((JmsMsgRep) msgRep).getJmsDestination(_initialContext)
+				: ((JmsMsgRep) msgRep).getJmsDestination(_jmsSession);
 
-		Destination dest = jmsMessage.getJMSDestination();
+		try {
+			if (msgRep.getPriority() != null) {
+				_currProducers[pubSessionIndex].setPriority(msgRep.getPriority());
+			}
+			publishMessage(_currProducers[pubSessionIndex], dest, jmsMessage);
+		} catch (Exception e) {
+			updateLastErrorResponse(e);
+			throw e;
+		}
+	}
 
+	private BytesMessage buildTemplate(BasicMsgRep msgRep, byte[] payload) throws Exception {
+		BytesMessage jmsMessage = _jmsSession.createBytesMessage();
+		if (payload != null) {
+			jmsMessage.writeBytes(payload);
+		}
+		applyCustomProperties(jmsMessage);
+		modifyMsgForJmsExtendedProps(jmsMessage);
 		if (_txProps.getBooleanProperty(RuntimeProperties.WANT_REPLY_TOPIC)
 				|| _txProps.getBooleanProperty(RuntimeProperties.WANT_REPLY_TEMPORARY_QUEUE)) {
 			updateReplyToTopic(msgRep, jmsMessage);
 		}
+		if (!_txProps.getStringProperty(RuntimeProperties.CORRELATION_ID).equals("")) {
+			jmsMessage.setJMSCorrelationID(_txProps.getStringProperty(RuntimeProperties.CORRELATION_ID));
+		}
+		if (!_txProps.getStringProperty(RuntimeProperties.MESSAGE_ID).equals("")) {
+			jmsMessage.setJMSMessageID(_txProps.getStringProperty(RuntimeProperties.MESSAGE_ID));
+		}
+		return jmsMessage;
+	}
+
+	/** Same properties as sdkperf's generic path writes for tool data carried as user properties. */
+	private void setPerSendProperties(BasicMsgRep msgRep, Message jmsMessage) throws JMSException {
+		if (!_txToolDataProps.WANT_TOOL_DATA) {
+			return;
+		}
+		ToolData txToolData = msgRep.getToolData();
+		if (_txToolDataProps.WANT_PAYLOAD_CHECK && txToolData.hasBinAttachHash()) {
+			jmsMessage.setIntProperty(ToolData.PROP_BIN_PAYLOAD_HASH, (int) txToolData.getBinAttachHash());
+		}
+		if (txToolData.hasStreamId()) {
+			jmsMessage.setIntProperty(ToolData.PROP_STREAM_ID, txToolData.getStreamId());
+		}
+		if (txToolData.hasMessageIdentifier()) {
+			jmsMessage.setLongProperty(ToolData.PROP_MESSAGE_ID, txToolData.getMessageIdentifier());
+		}
+		if (_txToolDataProps.WANT_LATENCY) {
+			long latencyTime = txToolData.getLatency();
+			if (latencyTime == 0L) {
+				latencyTime = Timing.getClockValue();
+			}
+			jmsMessage.setLongProperty(ToolData.PROP_LATENCY, latencyTime);
+		}
+	}
+
+	/** The -cpl custom properties, parsed the same way as sdkperf's generic publish path. */
+	private void applyCustomProperties(Message jmsMessage) throws JMSException {
+		List<?> customProps = (List<?>) _txProps.getProperty(RuntimeProperties.CUSTOM_PROPERTIES_LIST);
+		if (customProps == null) {
+			return;
+		}
+		for (int i = 0; i + 3 <= customProps.size(); i += 3) {
+			String type = (String) customProps.get(i);
+			String name = (String) customProps.get(i + 1);
+			String value = (String) customProps.get(i + 2);
+			try {
+				if (type.equalsIgnoreCase("Boolean")) {
+					if (value.equalsIgnoreCase("true") || value.equals("1")) {
+						jmsMessage.setBooleanProperty(name, true);
+					} else if (value.equalsIgnoreCase("false") || value.equals("0")) {
+						jmsMessage.setBooleanProperty(name, false);
+					} else {
+						Trace.warn("Could not parse Boolean property for custom JMS property \"" + type + "," + name
+								+ "," + value + "\"");
+					}
+				} else if (type.equalsIgnoreCase("String")) {
+					jmsMessage.setStringProperty(name, value);
+				} else if (type.equalsIgnoreCase("Float")) {
+					jmsMessage.setFloatProperty(name, Float.parseFloat(value));
+				} else if (type.equalsIgnoreCase("Int")) {
+					jmsMessage.setIntProperty(name, Integer.parseInt(value));
+				} else if (type.equalsIgnoreCase("Long")) {
+					jmsMessage.setLongProperty(name, Long.parseLong(value));
+				} else if (type.equalsIgnoreCase("Short")) {
+					jmsMessage.setShortProperty(name, Short.parseShort(value));
+				} else {
+					Trace.warn("Invalid Type for custom JMS property \"" + type + "," + name + "," + value + "\"");
+				}
+			} catch (NumberFormatException e) {
+				Trace.warn("Could not parse custom JMS property \"" + type + "," + name + "," + value + "\"", e);
+			}
+		}
+	}
+
+	/**
+	 * Publishes the bytes of a binary (-smf) message file as the body of an
+	 * AMQP BytesMessage. The files are not decoded as SMF: their bytes are the
+	 * payload as-is. Each producer builds one message per file on first use
+	 * and resends it, which is safe because qpid encodes the message at send
+	 * time. Binary messages carry no destination, so each producer index goes
+	 * round robin through the publish topics (or queues).
+	 */
+	@Override
+	protected void publishBinarySmfMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+		byte[] payload = msgRep.getSmfBytes();
+		if (payload == null) {
+			throw new PubSubException("CLIENT " + _clientIdStr + ": Error trying to publish binary message (null).");
+		}
+
+		if (_binaryMsgs == null) {
+			createBinaryPublishState();
+		}
+		Map<byte[], BytesMessage> msgs = _binaryMsgs[pubSessionIndex];
+		BytesMessage jmsMessage = msgs.get(payload);
+		// A message whose last send has not settled is read-only and cannot take a new send time.
+		if (jmsMessage != null && (_wantEndToEndLatency || _failoverSeqs != null || _requestTracker != null) && !stampMessage(_publishContexts[pubSessionIndex], jmsMessage)) {
+			jmsMessage = null;
+		}
+		if (jmsMessage == null) {
+			jmsMessage = _jmsSession.createBytesMessage();
+			jmsMessage.writeBytes(payload);
+			if (_txProps.getBooleanProperty(RuntimeProperties.WANT_REPLY_TOPIC)
+					|| _txProps.getBooleanProperty(RuntimeProperties.WANT_REPLY_TEMPORARY_QUEUE)) {
+				updateReplyToTopic(msgRep, jmsMessage);
+			}
+			msgs.put(payload, jmsMessage);
+		}
+
+		// Each producer index rotates through the destinations on its own.
+		PublishContext ctx = _publishContexts[pubSessionIndex];
+		Destination[] dests = _binaryDests;
+		if (ctx._binaryDestIndex >= dests.length) {
+			ctx._binaryDestIndex = 0;
+		}
+		Destination dest = dests[ctx._binaryDestIndex++];
 
 		try {
 			if(msgRep.getPriority() != null) {
-				_producers[pubSessionIndex].setPriority(msgRep.getPriority());
+				_currProducers[pubSessionIndex].setPriority(msgRep.getPriority());
 			}
-			_producers[pubSessionIndex].send(dest, jmsMessage);
+			publishMessage(_currProducers[pubSessionIndex], dest, jmsMessage);
 		} catch (Exception e) {
 			updateLastErrorResponse(e);
 			throw e;
 		}
 	}
 
+	@Override
+	public void publishMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+		PublishContext ctx = _publishContexts[pubSessionIndex];
+		_currPublish.set(ctx);
+		if (_failoverSeqs != null) {
+			// Numbered once per publish, so a message rebuilt and stamped again keeps its number.
+			_failoverSeqs[pubSessionIndex]++;
+		}
+		if (_requestTracker == null) {
+			super.publishMsg(msgRep, pubSessionIndex);
+			return;
+		}
+		// Registered before the send, so a fast reply always finds its request.
+		try {
+			ctx._requestId = _requestTracker.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JMSException("CLIENT " + _clientIdStr + ": interrupted waiting for an outstanding request slot.");
+		}
+		try {
+			super.publishMsg(msgRep, pubSessionIndex);
+		} catch (Exception e) {
+			_requestTracker.cancel(ctx._requestId);
+			throw e;
+		}
+	}
+
+	/**
+	 * Replies like sdkperf's reply mode (-cm=reply) and, for a request from a
+	 * client in request/reply mode, copies its request id into the reply.
+	 */
+	@Override
+	public void reflectMsg(AbstractWrappedMessage message) {
+		Message request = (message instanceof JmsWrappedMessage) ? ((JmsWrappedMessage) message).getMessage() : null;
+		try {
+			if (request == null || request.getJMSReplyTo() == null
+					|| !request.propertyExists(RequestReplyTracker.REQUEST_ID_PROPERTY)) {
+				super.reflectMsg(message);
+				return;
+			}
+			Message reply = copyMessageForReflect(_jmsSession, request);
+			reply.setLongProperty(RequestReplyTracker.REQUEST_ID_PROPERTY,
+					request.getLongProperty(RequestReplyTracker.REQUEST_ID_PROPERTY));
+			_defaultProducer.send(request.getJMSReplyTo(), reply);
+		} catch (Exception e) {
+			Trace.error("CLIENT " + _clientIdStr + ": failed to send reply.", e);
+		}
+	}
+
+	@Override
+	protected void publishMessage(MessageProducer prod, Destination dest, Message msg) throws JMSException {
+		PublishContext ctx = getCurrentPublish();
+		msg = stampForSend(ctx, msg);
+		MessageProducer bound = getBoundProducer(ctx.getProducerIndex(), prod, dest);
+		if (bound != prod) {
+			bound.send(msg);
+		} else {
+			super.publishMessage(prod, dest, msg);
+		}
+	}
+
+	/**
+	 * The publish in progress on the calling thread. A publishMessage() call
+	 * that did not come through publishMsg(), as in the JMH benchmarks, is
+	 * taken as producer index 0.
+	 */
+	protected PublishContext getCurrentPublish() {
+		PublishContext ctx = _currPublish.get();
+		return (ctx != null) ? ctx : _publishContexts[0];
+	}
+
+	protected PublishContext getPublishContext(int producerIndex) {
+		return _publishContexts[producerIndex];
+	}
+
+	/**
+	 * Puts the current time (in end-to-end latency mode), the publisher
+	 * sequence number (with failover stats on) and the request id and reply-to
+	 * queue (in request/reply mode) in the message just before it is sent.
+	 *
+	 * @return false if the message is read-only because an earlier send of it
+	 *         has not settled yet
+	 */
+	protected boolean stampMessage(PublishContext ctx, Message msg) throws JMSException {
+		try {
+			if (_wantEndToEndLatency) {
+				msg.setLongProperty(EndToEndLatency.SEND_TIME_PROPERTY, EndToEndLatency.now());
+			}
+			if (_failoverSeqs != null) {
+				msg.setStringProperty(FailoverRecorder.PUBLISHER_PROPERTY, _failoverPubIds[ctx._producerIndex]);
+				msg.setLongProperty(FailoverRecorder.SEQUENCE_PROPERTY, _failoverSeqs[ctx._producerIndex]);
+			}
+			if (_requestTracker != null) {
+				msg.setLongProperty(RequestReplyTracker.REQUEST_ID_PROPERTY, ctx._requestId);
+				msg.setJMSReplyTo(_replyQueue);
+			}
+			return true;
+		} catch (MessageNotWriteableException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stamps msg for this send. If msg is still read-only because an earlier
+	 * send of it has not settled, a writable copy is stamped and sent instead,
+	 * so a send never goes out with the previous send's stamp.
+	 *
+	 * @return the message to send
+	 */
+	protected Message stampForSend(PublishContext ctx, Message msg) throws JMSException {
+		if (stampMessage(ctx, msg)) {
+			return msg;
+		}
+		if (!(msg instanceof JmsMessage)) {
+			throw new JMSException("CLIENT " + _clientIdStr + ": cannot stamp read-only message of type "
+					+ msg.getClass().getName());
+		}
+		// qpid's copy leaves out the in-flight read-only flag.
+		Message copy = ((JmsMessage) msg).copy();
+		if (!stampMessage(ctx, copy)) {
+			throw new JMSException("CLIENT " + _clientIdStr + ": copy of a read-only message is not writable");
+		}
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized void createBinaryPublishState() throws Exception {
+		if (_binaryMsgs != null) {
+			// Another publish thread built it first.
+			return;
+		}
+		List<String> topics = (List<String>) _txProps.getProperty(RuntimeProperties.PUBLISH_TOPIC_LIST);
+		List<String> queues = (List<String>) _txProps.getProperty(RuntimeProperties.PUBLISH_QUEUE_LIST);
+		List<Destination> dests = new ArrayList<Destination>();
+		if (topics != null) {
+			for (String topic : topics) {
+				dests.add(_jmsSession.createTopic(topic));
+			}
+		}
+		if (queues != null) {
+			for (String queue : queues) {
+				dests.add(_jmsSession.createQueue(queue));
+			}
+		}
+		if (dests.isEmpty()) {
+			throw new PubSubException("CLIENT " + _clientIdStr
+					+ ": Binary message publish needs a publish topic or queue list (-ptl or -pql).");
+		}
+		_binaryDests = dests.toArray(new Destination[dests.size()]);
+
+		@SuppressWarnings("rawtypes")
+		Map[] msgs = new Map[_producers.length];
+		for (int i = 0; i < msgs.length; i++) {
+			msgs[i] = new IdentityHashMap<byte[], BytesMessage>();
+		}
+		_binaryMsgs = msgs;
+	}
+
 	@Override
 	protected String getMessageConsumerName(MessageConsumer msgConsumer) {
 		Trace.warn("getMessageConsumerName() not implemented.");
@@ -189,8 +1302,18 @@ public class AmqpJmsClient extends AbstractJmsClient {
 		_lastErrorResponse = exception;
 	}
 
+	/**
+	 * sdkperf calls this at every transaction boundary (-txs messages). The
+	 * CommitBatcher decides whether to commit now; in adaptive mode it
+	 * usually waits for more messages, so use -txs=1 to let it pick any size.
+	 */
 	@Override
 	public void commitTransactionOnCurrPub(int producerIndex, boolean wantRollback) throws Exception {
+		long pending = _cntPublished - _cntPublishedAtCommit;
+		if (!wantRollback && _commitBatcher != null && !_commitBatcher.shouldCommit(pending, System.nanoTime())) {
+			return;
+		}
+		long start = System.nanoTime();
 		try {
 			if (wantRollback) {
 				_currTransactedSession.rollback();
@@ -203,9 +1326,36 @@ public class AmqpJmsClient extends AbstractJmsClient {
 		} catch (JMSException e) {
 			updateLastErrorResponse(e);
 			throw e;
+		} finally {
+			_cntPublishedAtCommit = _cntPublished;
+		}
+		if (_commitBatcher != null) {
+			if (wantRollback) {
+				_commitBatcher.onRolledBack();
+			} else {
+				_commitBatcher.onCommitted(pending, System.nanoTime() - start);
+			}
 		}
 	}
 
+	/** Commits messages an adaptive batch is still holding back. */
+	private void commitPendingBatch() throws Exception {
+		if (_commitBatcher != null && _commitBatcher.isAdaptive() && _currTransactedSession != null
+				&& _cntPublished > _cntPublishedAtCommit) {
+			long pending = _cntPublished - _cntPublishedAtCommit;
+			long start = System.nanoTime();
+			_cntPublishedAtCommit = _cntPublished;
+			_currTransactedSession.commit();
+			_commitBatcher.onCommitted(pending, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public void publishPropsUpdateNotify(int producerIndex, String transactedSessionName) throws Exception {
+		commitPendingBatch();
+		super.publishPropsUpdateNotify(producerIndex, transactedSessionName);
+	}
+
 	@Override
 	public void commitXaSessionOnCurrPub(int producerIndex, boolean wantRollback, boolean onePhase, boolean noStart)
 			throws Exception {
@@ -233,13 +1383,298 @@ public class AmqpJmsClient extends AbstractJmsClient {
 	protected BasicMessageListener createMessageListener(MessageConsumer msgConsumer, EpConfigProperties epProps,
 			String destName, boolean isTopic) throws JMSException, PubSubException {
 
-		BasicMessageListener msgListener = new BasicMessageListener(this, destName, isTopic, null, false, null,
-				msgConsumer);
-		msgListener.setWantPriorityOrderChecking(epProps.getWantMessagePriorityOrderChecking());
+		AmqpMessageListener msgListener = newMessageListener(msgConsumer, epProps, destName, isTopic, null, false);
 		msgListener.startMessageListener();
 		return msgListener;
 	}
 
+	private AmqpMessageListener newMessageListener(MessageConsumer msgConsumer, EpConfigProperties epProps,
+			String destName, boolean isTopic, Topic topic, boolean isNonDurable) {
+		int ackBatchSize = 0;
+		if (getConsumerAckMode() == Session.CLIENT_ACKNOWLEDGE) {
+			ackBatchSize = _pluginProps.getInt(AmqpPluginProperties.ACK_BATCH_SIZE, DEFAULT_ACK_BATCH_SIZE);
+		}
+		AmqpMessageListener msgListener = new AmqpMessageListener(this, destName, isTopic, topic, isNonDurable,
+				msgConsumer, ackBatchSize, _pluginProps.getLong(AmqpPluginProperties.ACK_BATCH_TIME_MSEC, 0));
+		msgListener.setWantPriorityOrderChecking(epProps.getWantMessagePriorityOrderChecking());
+		msgListener.setWantEndToEndLatency(_wantEndToEndLatency);
+		msgListener.setWantFailoverStats(_failoverRecorder != null);
+		msgListener.setCompressor(_compressor);
+		msgListener.setFlightRecorder(_flightRecorder);
+		return msgListener;
+	}
+
+	/**
+	 * With sessionPerConsumer every queue, topic endpoint and topic
+	 * subscription gets a session of its own (queues get consumersPerQueue of
+	 * them), so qpid delivers to each on its own dispatcher thread instead of
+	 * serializing all consumers on _jmsSession. Subscriptions on a transacted
+	 * session are left to the base class.
+	 */
+	private boolean wantSessionPerConsumer(EpConfigProperties epProps) {
+		String transactedSessionName = epProps.getTransactedSessionName();
+		return _pluginProps.getBoolean(AmqpPluginProperties.SESSION_PER_CONSUMER, false)
+				&& (transactedSessionName == null || transactedSessionName.equals(""));
+	}
+
+	@Override
+	public void queueUpdate(EpConfigProperties epProps) throws Exception {
+		if (!wantSessionPerConsumer(epProps)) {
+			super.queueUpdate(epProps);
+			return;
+		}
+		List<String> queues = epProps.getEpNames();
+		if (!epProps.getIsAdding()) {
+			removeSessionConsumers(queues, false);
+			return;
+		}
+		List<String> selectors = epProps.getSelectors();
+		int queuesSize = (queues == null) ? 0 : queues.size();
+		int selectorsSize = (selectors == null) ? 0 : selectors.size();
+		if (queuesSize == 0) {
+			Trace.error("CLIENT " + _clientIdStr + ": Empty queue list provided. Aborting queue update");
+			return;
+		}
+		if (selectorsSize != 0 && selectorsSize != queuesSize) {
+			Trace.error("CLIENT " + _clientIdStr + ": Queue list must be the same size as selector list");
+			return;
+		}
+		int consumersPerQueue = _pluginProps.getInt(AmqpPluginProperties.CONSUMERS_PER_QUEUE, 1);
+		try {
+			for (int i = 0; i < queuesSize; ++i) {
+				String queueName = queues.get(i);
+				Queue queue = lookupQueue(queueName);
+				String selector = (selectorsSize > 0) ? selectors.get(i) : null;
+				for (int n = 0; n < consumersPerQueue; ++n) {
+					AmqpMessageListener listener = createSessionConsumer(queue, queueName, false, false, null, selector,
+							epProps);
+					if (consumersPerQueue > 1) {
+						listener.setStatsName(queueName + "#" + n);
+					}
+				}
+			}
+		} catch (JMSException ex) {
+			updateLastErrorResponse(ex);
+			throw ex;
+		}
+	}
+
+	@Override
+	public void topicUpdate(EpConfigProperties epProps) throws Exception {
+		if (!wantSessionPerConsumer(epProps)) {
+			super.topicUpdate(epProps);
+			return;
+		}
+		List<String> endpointNames = epProps.getEpNames();
+		if (!epProps.getIsAdding()) {
+			removeSessionConsumers(endpointNames, epProps.getTopicUnsubscribe());
+			return;
+		}
+		List<String> topics = epProps.getSubscriptions();
+		List<String> selectors = epProps.getSelectors();
+		int endpointsSize = (endpointNames == null) ? 0 : endpointNames.size();
+		int topicsSize = (topics == null) ? 0 : topics.size();
+		int selectorsSize = (selectors == null) ? 0 : selectors.size();
+		if (endpointsSize == 0) {
+			Trace.error("CLIENT " + _clientIdStr + ": Empty durable topic endpoint list provided. Aborting topic update");
+			return;
+		}
+		if (topicsSize != endpointsSize) {
+			Trace.error("CLIENT " + _clientIdStr + ": Topics specified for DTEs but not of same length.  Aborting topic update");
+			return;
+		}
+		if (selectorsSize > 1 && selectorsSize != endpointsSize) {
+			Trace.error("CLIENT " + _clientIdStr + ": Topics and Selectors specified for DTEs but not of same length.  Aborting topic update");
+			return;
+		}
+		try {
+			for (int i = 0; i < endpointsSize; ++i) {
+				String selector = null;
+				if (selectorsSize > 0) {
+					selector = selectors.get((selectorsSize > 1) ? i : 0);
+				}
+				createSessionConsumer(lookupTopic(topics.get(i)), endpointNames.get(i), true, false,
+						endpointNames.get(i), selector, epProps);
+			}
+		} catch (JMSException ex) {
+			updateLastErrorResponse(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Same as the base class, but topic subscriptions get an
+	 * AmqpMessageListener, so their stats and end-to-end latency are kept.
+	 */
+	@Override
+	public void subscriptionUpdate(EpConfigProperties epProps) throws Exception {
+		boolean sessionPerConsumer = wantSessionPerConsumer(epProps);
+		List<String> topics = epProps.getSubscriptions();
+		if (!epProps.getIsAdding()) {
+			if (sessionPerConsumer) {
+				removeSessionConsumers(topics, false);
+			} else {
+				super.subscriptionUpdate(epProps);
+			}
+			return;
+		}
+		try {
+			if (topics != null) {
+				for (String topicName : topics) {
+					Topic topic = lookupTopic(topicName);
+					if (sessionPerConsumer) {
+						createSessionConsumer(topic, topicName, true, true, null, null, epProps);
+						continue;
+					}
+					AmqpMessageListener listener = newMessageListener(_jmsSession.createConsumer(topic), epProps,
+							topicName, true, topic, true);
+					listener.startMessageListener();
+					_consumersList.add(listener);
+				}
+			}
+		} catch (JMSException ex) {
+			updateLastErrorResponse(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Creates a session and a consumer on it for one subscription, and adds
+	 * the listener that owns them to _consumersList.
+	 *
+	 * @param durableName durable subscription name, null for a plain consumer
+	 */
+	private AmqpMessageListener createSessionConsumer(Destination dest, String destName, boolean isTopic,
+			boolean isNonDurable, String durableName, String selector, EpConfigProperties epProps)
+			throws JMSException {
+		Session session = _jmsConnection.createSession(false, getConsumerAckMode());
+		try {
+			MessageConsumer consumer = (durableName != null)
+					? session.createDurableSubscriber((Topic) dest, durableName, selector, epProps.getNoLocal())
+					: session.createConsumer(dest, selector, epProps.getNoLocal());
+			AmqpMessageListener listener = newMessageListener(consumer, epProps, destName, isTopic,
+					isTopic ? (Topic) dest : null, isNonDurable);
+			listener.setSession(session);
+			listener.startMessageListener();
+			_consumersList.add(listener);
+			return listener;
+		} catch (JMSException e) {
+			session.close();
+			throw e;
+		}
+	}
+
+	/** Closes every consumer on the named destinations, with their sessions. */
+	private void removeSessionConsumers(List<String> destNames, boolean unsubscribe) throws JMSException {
+		boolean matchFound = false;
+		try {
+			for (String destName : destNames) {
+				boolean destFound = false;
+				synchronized (_consumersList) {
+					for (Iterator<JmsMessageReceiver> it = _consumersList.iterator(); it.hasNext();) {
+						JmsMessageReceiver msgReceiver = it.next();
+						if (!msgReceiver.getDestinationString().equals(destName)) {
+							continue;
+						}
+						destFound = true;
+						if (msgReceiver instanceof AmqpMessageListener) {
+							((AmqpMessageListener) msgReceiver).flushAcks();
+						}
+						msgReceiver.getJmsMessageConsumer().close();
+						if (msgReceiver instanceof AmqpMessageListener) {
+							closeConsumerSession((AmqpMessageListener) msgReceiver);
+						}
+						it.remove();
+					}
+				}
+				if (destFound && unsubscribe) {
+					_jmsSession.unsubscribe(destName);
+				}
+				matchFound |= destFound;
+			}
+		} catch (JMSException ex) {
+			updateLastErrorResponse(ex);
+			throw ex;
+		}
+		if (!matchFound) {
+			Trace.error("CLIENT " + _clientIdStr + ": Did not find matching in topic remove.");
+		}
+	}
+
+	private void closeConsumerSession(AmqpMessageListener listener) throws JMSException {
+		Session session = listener.getSession();
+		if (session != null) {
+			listener.setSession(null);
+			session.close();
+		}
+	}
+
+	/**
+	 * Recreates the consumers after a reconnect. With sessionPerConsumer each
+	 * one gets a new session of its own, otherwise they all go on _jmsSession.
+	 */
+	@Override
+	protected void reconnectToFlows() throws Exception {
+		if (!_pluginProps.getBoolean(AmqpPluginProperties.SESSION_PER_CONSUMER, false)) {
+			super.reconnectToFlows();
+			return;
+		}
+		List<JmsMessageReceiver> consumers;
+		synchronized (_consumersList) {
+			for (Iterator<JmsMessageReceiver> it = _consumersList.iterator(); it.hasNext();) {
+				if (it.next().isNonDurable()) {
+					it.remove();
+				}
+			}
+			consumers = new ArrayList<JmsMessageReceiver>(_consumersList);
+		}
+		for (JmsMessageReceiver msgReceiver : consumers) {
+			Session session = _jmsConnection.createSession(false, getConsumerAckMode());
+			MessageConsumer consumer;
+			if (msgReceiver.isTopic()) {
+				Topic topic = (_destTopicMap != null && _destTopicMap.containsKey(msgReceiver.getDestinationString()))
+						? _destTopicMap.get(msgReceiver.getDestinationString()) : msgReceiver.getTopic();
+				consumer = session.createDurableSubscriber(topic, msgReceiver.getDestinationString());
+			} else {
+				consumer = session.createConsumer(lookupQueue(msgReceiver.getDestinationString()));
+			}
+			if (msgReceiver instanceof AmqpMessageListener) {
+				((AmqpMessageListener) msgReceiver).setSession(session);
+			}
+			msgReceiver.setJmsMessageConsumer(consumer);
+			msgReceiver.restartMessageListener();
+		}
+	}
+
+	private Queue lookupQueue(String queueName) throws Exception {
+		if (_destQueueMap != null && _destQueueMap.containsKey(queueName)) {
+			return _destQueueMap.get(queueName);
+		}
+		return _wantJndi ? (Queue) _initialContext.lookup(queueName) : _jmsSession.createQueue(queueName);
+	}
+
+	private Topic lookupTopic(String topicName) throws Exception {
+		if (_destTopicMap != null && _destTopicMap.containsKey(topicName)) {
+			return _destTopicMap.get(topicName);
+		}
+		return _wantJndi ? (Topic) _initialContext.lookup(topicName) : _jmsSession.createTopic(topicName);
+	}
+
+	/**
+	 * The plugin listeners among the client's consumers, safe to call from the
+	 * stats thread: the copy is taken under the lock of the synchronized list
+	 * that init() wraps _consumersList in.
+	 */
+	List<AmqpMessageListener> getAmqpListeners() {
+		List<AmqpMessageListener> listeners = new ArrayList<AmqpMessageListener>();
+		for (Object consumer : _consumersList.toArray()) {
+			if (consumer instanceof AmqpMessageListener) {
+				listeners.add((AmqpMessageListener) consumer);
+			}
+		}
+		return listeners;
+	}
+
 	@Override
 	public String getFormattedVersionInfo() {
 		StringBuilder sb = new StringBuilder();
@@ -295,6 +1730,39 @@ public class AmqpJmsClient extends AbstractJmsClient {
 		return sb.toString();		
 	}
 	
+	/**
+	 * State of the publish in progress on one producer index. Only the publish
+	 * thread of that index uses it, so it needs no locking.
+	 */
+	protected static final class PublishContext {
+
+		private final int _producerIndex;
+		// Id of the request being sent, in request/reply mode.
+		private long _requestId = 0;
+		// Scheduled send time, with a fixed rate or rate ramp.
+		private long _intendedNanos = 0;
+		// Copy buffer in large message mode.
+		private byte[] _largeMessageChunk = null;
+		// Next destination of a binary (-smf) publish.
+		private int _binaryDestIndex = 0;
+
+		PublishContext(int producerIndex) {
+			_producerIndex = producerIndex;
+		}
+
+		public int getProducerIndex() {
+			return _producerIndex;
+		}
+
+		public long getIntendedNanos() {
+			return _intendedNanos;
+		}
+
+		public void setIntendedNanos(long intendedNanos) {
+			_intendedNanos = intendedNanos;
+		}
+	}
+
 	private static String getVersionString(Class<?> sampleClass) {
 		
 		String versionString = "";
@@ -17,17 +17,25 @@ package com.solacesystems.pubsub.sdkperf.jms.amqp;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 
 import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
 import javax.jms.Session;
 import javax.jms.XAConnection;
 import javax.jms.XASession;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.qpid.jms.transports.TransportOptions;
+
+import io.netty.channel.epoll.Epoll;
 
 import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
 import com.solacesystems.pubsub.sdkperf.core.AbstractClient;
@@ -42,8 +50,58 @@ public class AmqpJmsSdkperfFactory implements JmsSdkperfFactory {
 	private static final Log Trace = LogFactory.getLog(AmqpJmsSdkperfFactory.class);
 	public  static final String INITIAL_CONTEXT_FACTORY_NAME = "org.apache.qpid.jms.jndi.JmsInitialContextFactory";
 	private static final String CONNECTION_FACTORY_PREFIX = "connectionfactory";
+	private static final String PREFETCH_ALL_OPTION = "jms.prefetchPolicy.all";
+	private static final String TCP_NO_DELAY_OPTION = "transport.tcpNoDelay";
+	private static final String TCP_KEEP_ALIVE_OPTION = "transport.tcpKeepAlive";
+	private static final String SEND_BUFFER_SIZE_OPTION = "transport.sendBufferSize";
+	private static final String RECEIVE_BUFFER_SIZE_OPTION = "transport.receiveBufferSize";
+	private static final String USE_EPOLL_OPTION = "transport.useEpoll";
+	private static final String IDLE_TIMEOUT_OPTION = "amqp.idleTimeout";
+	// qpid's defaults, for the options logged by logTransportSettings().
+	private static final String[][] TRANSPORT_DEFAULTS = {
+			{ TCP_NO_DELAY_OPTION, String.valueOf(TransportOptions.DEFAULT_TCP_NO_DELAY) },
+			{ TCP_KEEP_ALIVE_OPTION, String.valueOf(TransportOptions.DEFAULT_TCP_KEEP_ALIVE) },
+			{ SEND_BUFFER_SIZE_OPTION, String.valueOf(TransportOptions.DEFAULT_SEND_BUFFER_SIZE) },
+			{ RECEIVE_BUFFER_SIZE_OPTION, String.valueOf(TransportOptions.DEFAULT_RECEIVE_BUFFER_SIZE) },
+			{ USE_EPOLL_OPTION, String.valueOf(TransportOptions.DEFAULT_USE_EPOLL) },
+			{ IDLE_TIMEOUT_OPTION, "60000" } };
+	private static boolean _transportSettingsLogged = false;
+	// The sdkperf options the JNDI environment is built from, see getSettingsKey().
+	private static final String[] CONNECTION_SETTINGS = { RuntimeProperties.CLIENT_IP_ADDR,
+			RuntimeProperties.RECONNECT_ATTEMPTS, RuntimeProperties.RECONNECT_INTERVAL_MSEC,
+			RuntimeProperties.EXTRA_PROP_LIST, RuntimeProperties.WANT_TCP_NODELAY,
+			RuntimeProperties.KEEPALIVE_INTERVAL_MSEC, RuntimeProperties.CLIENT_VPN, RuntimeProperties.CLIENT_USERNAME,
+			RuntimeProperties.CLIENT_PASSWORD, RuntimeProperties.CLIENT_COMPRESSION_LEVEL };
+	private static final Map<List<Object>, ConnectionSettings> _connectionSettingsCache =
+			new HashMap<List<Object>, ConnectionSettings>();
 	
+	/**
+	 * Gives each client its own InitialContext, since sdkperf closes it on
+	 * disconnect. The JNDI environment, connection URI and connection factory
+	 * behind it are built once per set of connection options and shared, so
+	 * each client after the first only pays for its connect.
+	 */
 	public InitialContext createInitialContext(RuntimeProperties rxProps, int clientIdInt) throws Exception {
+		ConnectionSettings settings = getConnectionSettings(rxProps);
+		Hashtable<String, Object> env = new Hashtable<String, Object>(settings._env);
+		
+		GenericAuthenticationScheme authScheme = (GenericAuthenticationScheme) rxProps.getProperty(RuntimeProperties.AUTHENTICATION_SCHEME);
+		
+		if (!rxProps.getStringProperty(RuntimeProperties.CLIENT_USERNAME).equals("") ||
+				(rxProps.getStringProperty(RuntimeProperties.CLIENT_USERNAME).equals("") &&
+				 !authScheme.equals(GenericAuthenticationScheme.CLIENT_CERTIFICATE) &&
+				 !authScheme.equals(GenericAuthenticationScheme.GSS_KRB))) {
+			String jmsUsername = ClientFactory.generateClientUsername(rxProps, clientIdInt);
+			env.put(javax.naming.Context.SECURITY_PRINCIPAL, jmsUsername);
+		}
+		return new ClientInitialContext(env, settings);
+	}
+
+	/**
+	 * Builds the JNDI environment shared by all clients with these options:
+	 * everything but the per-client security principal.
+	 */
+	private static Hashtable<String, Object> buildEnvironment(RuntimeProperties rxProps) throws Exception {
 		// Must build the provider URL string array.
 		String hostList = rxProps.getStringProperty(RuntimeProperties.CLIENT_IP_ADDR);
 		int reconnectAttempts;
@@ -73,12 +131,27 @@ public class AmqpJmsSdkperfFactory implements JmsSdkperfFactory {
 			}
 		}
 		// Convert the list items into strings, so the list can be appended if needed.
+		// Plugin options are consumed by AmqpPluginProperties and must not reach qpid.
 		if (extraPropsListTemp != null && extraPropsListTemp.size() > 0) {
-			for (int i = 0; i < extraPropsListTemp.size(); i++) {
+			for (int i = 0; i < extraPropsListTemp.size(); i += 2) {
+				if (AmqpPluginProperties.isPluginProperty((String) extraPropsListTemp.get(i))) {
+					continue;
+				}
 				extraPropsList.add((String) extraPropsListTemp.get(i));
+				if (i + 1 < extraPropsListTemp.size()) {
+					extraPropsList.add((String) extraPropsListTemp.get(i + 1));
+				}
 			}
 			extraPropsListTemp = null;
 		}
+		// Consumer link credit is qpid's prefetch policy, unless the user already set one.
+		String prefetch = new AmqpPluginProperties(rxProps).getString(AmqpPluginProperties.CONSUMER_PREFETCH, null);
+		if (prefetch != null && !extraPropsList.contains(PREFETCH_ALL_OPTION)) {
+			extraPropsList.add(PREFETCH_ALL_OPTION);
+			extraPropsList.add(prefetch);
+		}
+		addTransportOptions(rxProps, extraPropsList);
+		logTransportSettings(extraPropsList);
 		// Get the message-vpn, if user has specified one.
 		try {
 			clientVpn = rxProps.getStringProperty(RuntimeProperties.CLIENT_VPN);
@@ -153,24 +226,12 @@ public class AmqpJmsSdkperfFactory implements JmsSdkperfFactory {
 			}
 		}
 		
-		Trace.info("Constructed Connection URI: " + bldr.toString());
-		
 		Hashtable<String,Object> 	env = new Hashtable<String,Object>();
 		env.put(InitialContext.INITIAL_CONTEXT_FACTORY, INITIAL_CONTEXT_FACTORY_NAME);
 		
 		String s = CONNECTION_FACTORY_PREFIX + "." + AmqpJmsClient.CONNECTION_FACTORY_LOOKUP;
 		env.put(s, bldr.toString());
 		
-		GenericAuthenticationScheme authScheme = (GenericAuthenticationScheme) rxProps.getProperty(RuntimeProperties.AUTHENTICATION_SCHEME);
-		
-		if (!rxProps.getStringProperty(RuntimeProperties.CLIENT_USERNAME).equals("") ||
-				(rxProps.getStringProperty(RuntimeProperties.CLIENT_USERNAME).equals("") &&
-				 !authScheme.equals(GenericAuthenticationScheme.CLIENT_CERTIFICATE) &&
-				 !authScheme.equals(GenericAuthenticationScheme.GSS_KRB))) {
-			String jmsUsername = ClientFactory.generateClientUsername(rxProps, clientIdInt);
-			env.put(javax.naming.Context.SECURITY_PRINCIPAL, jmsUsername);
-		}
-		
 		String jmsPassword = rxProps.getStringProperty(RuntimeProperties.CLIENT_PASSWORD);
 		env.put(javax.naming.Context.SECURITY_CREDENTIALS, jmsPassword);
 		
@@ -213,7 +274,8 @@ public class AmqpJmsSdkperfFactory implements JmsSdkperfFactory {
 		// Check for WANT_NON_BLOCKING_CONNECT
 		Boolean value = rxProps.getBooleanProperty(RuntimeProperties.WANT_NON_BLOCKING_CONNECT);
 		if (value != null && value) {
-			Trace.warn("Cannot connect in a non-blocking way when using the JmsClient.");
+			Trace.info("Non-blocking connect: clients connect in parallel, see " + AmqpPluginProperties.CONNECT_CONCURRENCY
+					+ ".");
 		}
 //		
 //		if (!rxProps.getProperty(RuntimeProperties.SSL_TRUST_STORE_PASSWORD).equals("")) {
@@ -276,20 +338,207 @@ public class AmqpJmsSdkperfFactory implements JmsSdkperfFactory {
 			List<String> extraProp = (List<String>) rxProps.getProperty(RuntimeProperties.EXTRA_PROP_LIST);
 			
 			for(int i = 0; i < (extraProp.size() - 1); i +=2) {
+				if (AmqpPluginProperties.isPluginProperty(extraProp.get(i))) {
+					continue;
+				}
 				env.put(extraProp.get(i), extraProp.get(i+1));
 			}
 		}
 		
 		if (rxProps.getIntegerProperty(RuntimeProperties.RECONNECT_INTERVAL_MSEC) != null) {
 		}
-		if (rxProps.getIntegerProperty(RuntimeProperties.KEEPALIVE_INTERVAL_MSEC) != null) {
-		}
-		if (rxProps.getIntegerProperty(RuntimeProperties.CLIENT_COMPRESSION_LEVEL) != null) {
+		Integer compressionLevel = rxProps.getIntegerProperty(RuntimeProperties.CLIENT_COMPRESSION_LEVEL);
+		if (compressionLevel != null) {
+			// qpid has no transport compression, AmqpJmsClient compresses the message payloads instead.
+			if (compressionLevel < 0 || compressionLevel > 9) {
+				throw new IllegalArgumentException("Compression level (-z) must be 0 to 9, got " + compressionLevel);
+			}
+			if (Trace.isDebugEnabled()) {
+				Trace.debug("Message payloads are compressed by the client at level " + compressionLevel);
+			}
 		}
 		
-		return new InitialContext(env);
+		return env;
+	}
+
+	/**
+	 * Maps sdkperf's socket options and the plugin's transport options onto
+	 * qpid transport URI options: -tnd/-nagle to TCP_NODELAY, and -ka to TCP
+	 * keepalive plus an AMQP idle timeout of twice the interval, so the broker
+	 * sends an empty frame at least every -ka ms (-ka=0 turns both off). An
+	 * option the user already set in -epl is left alone.
+	 */
+	private static void addTransportOptions(RuntimeProperties rxProps, List<String> extraPropsList) {
+		AmqpPluginProperties pluginProps = new AmqpPluginProperties(rxProps);
+		Boolean tcpNoDelay = rxProps.getBooleanProperty(RuntimeProperties.WANT_TCP_NODELAY);
+		if (tcpNoDelay != null) {
+			addOption(extraPropsList, TCP_NO_DELAY_OPTION, tcpNoDelay.toString());
+		}
+		Integer keepaliveMsec = rxProps.getIntegerProperty(RuntimeProperties.KEEPALIVE_INTERVAL_MSEC);
+		if (keepaliveMsec != null) {
+			addOption(extraPropsList, TCP_KEEP_ALIVE_OPTION, String.valueOf(keepaliveMsec > 0));
+			addOption(extraPropsList, IDLE_TIMEOUT_OPTION, String.valueOf(Math.max(keepaliveMsec, 0) * 2L));
+		}
+		int sendBufferSize = pluginProps.getInt(AmqpPluginProperties.SOCKET_SEND_BUFFER_SIZE, 0);
+		if (sendBufferSize > 0) {
+			addOption(extraPropsList, SEND_BUFFER_SIZE_OPTION, String.valueOf(sendBufferSize));
+		}
+		int receiveBufferSize = pluginProps.getInt(AmqpPluginProperties.SOCKET_RECEIVE_BUFFER_SIZE, 0);
+		if (receiveBufferSize > 0) {
+			addOption(extraPropsList, RECEIVE_BUFFER_SIZE_OPTION, String.valueOf(receiveBufferSize));
+		}
+		if (pluginProps.getString(AmqpPluginProperties.NATIVE_EPOLL, null) != null) {
+			addOption(extraPropsList, USE_EPOLL_OPTION,
+					String.valueOf(pluginProps.getBoolean(AmqpPluginProperties.NATIVE_EPOLL, true)));
+		}
+	}
+
+	private static void addOption(List<String> extraPropsList, String key, String value) {
+		for (int i = 0; i < extraPropsList.size(); i += 2) {
+			if (extraPropsList.get(i).equals(key)) {
+				return;
+			}
+		}
+		extraPropsList.add(key);
+		extraPropsList.add(value);
+	}
+
+	/**
+	 * Logs the transport settings the first client connects with, once per
+	 * run: qpid's default for each option unless the URI options set it (the
+	 * last value wins, as in qpid).
+	 */
+	private static synchronized void logTransportSettings(List<String> extraPropsList) {
+		if (_transportSettingsLogged) {
+			return;
+		}
+		_transportSettingsLogged = true;
+		StringBuilder sb = new StringBuilder("AMQP transport settings:");
+		for (String[] option : TRANSPORT_DEFAULTS) {
+			String value = option[1];
+			for (int i = 0; i + 1 < extraPropsList.size(); i += 2) {
+				if (extraPropsList.get(i).equals(option[0])) {
+					value = extraPropsList.get(i + 1);
+				}
+			}
+			sb.append(" ").append(option[0]).append("=").append(value);
+		}
+		sb.append(", native epoll ").append(isEpollAvailable() ? "available" : "not available");
+		Trace.info(sb.toString());
+	}
+
+	private static boolean isEpollAvailable() {
+		try {
+			return Epoll.isAvailable();
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The values of the options in CONNECTION_SETTINGS, which are all that
+	 * buildEnvironment() reads. sdkperf gives each client its own copy of the
+	 * properties, so clients are matched by these values rather than by the
+	 * properties object.
+	 */
+	private static List<Object> getSettingsKey(RuntimeProperties rxProps) {
+		List<Object> key = new ArrayList<Object>(CONNECTION_SETTINGS.length);
+		for (String name : CONNECTION_SETTINGS) {
+			Object value = rxProps.getProperty(name);
+			key.add(value instanceof List ? new ArrayList<Object>((List<?>) value) : value);
+		}
+		return key;
+	}
+
+	private static ConnectionSettings getConnectionSettings(RuntimeProperties rxProps) throws Exception {
+		List<Object> key = getSettingsKey(rxProps);
+		synchronized (_connectionSettingsCache) {
+			ConnectionSettings settings = _connectionSettingsCache.get(key);
+			if (settings == null) {
+				settings = new ConnectionSettings(buildEnvironment(rxProps));
+				_connectionSettingsCache.put(key, settings);
+			}
+			return settings;
+		}
+	}
+
+	/** Forgets all cached connection settings, so the next client builds them again. */
+	static void clearConnectionSettingsCache() {
+		synchronized (_connectionSettingsCache) {
+			_connectionSettingsCache.clear();
+		}
 	}
 	
+	/**
+	 * The connection URI that createInitialContext() bound to the connection
+	 * factory lookup name.
+	 */
+	public static String getConnectionUri(InitialContext initialContext) throws NamingException {
+		if (initialContext instanceof ClientInitialContext) {
+			return ((ClientInitialContext) initialContext)._settings._uri;
+		}
+		return (String) initialContext.getEnvironment().get(
+				CONNECTION_FACTORY_PREFIX + "." + AmqpJmsClient.CONNECTION_FACTORY_LOOKUP);
+	}
+
+	/**
+	 * The JNDI environment, connection URI and connection factory shared by
+	 * the clients with the same connection options. qpid's connection factory
+	 * is thread safe, and qpid ignores the JNDI security principal (connect()
+	 * passes the username to createConnection()), so one factory serves them
+	 * all.
+	 */
+	private static final class ConnectionSettings {
+		private final Hashtable<String, Object> _env;
+		private final String _uri;
+		private final ConnectionFactory _connectionFactory;
+
+		ConnectionSettings(Hashtable<String, Object> env) throws NamingException {
+			_env = env;
+			_uri = (String) env.get(CONNECTION_FACTORY_PREFIX + "." + AmqpJmsClient.CONNECTION_FACTORY_LOOKUP);
+			Trace.info("Constructed Connection URI: " + _uri);
+			InitialContext initialContext = new InitialContext(env);
+			try {
+				_connectionFactory = (ConnectionFactory) initialContext.lookup(AmqpJmsClient.CONNECTION_FACTORY_LOOKUP);
+			} finally {
+				initialContext.close();
+			}
+		}
+	}
+
+	/**
+	 * A client's own InitialContext. Looking up the connection factory returns
+	 * the shared one; any other name (a JNDI destination, the XA connection
+	 * factory) goes to a qpid context built on first use. close() only closes
+	 * this client's context, after which every lookup fails as usual.
+	 */
+	private static final class ClientInitialContext extends InitialContext {
+		private final ConnectionSettings _settings;
+
+		ClientInitialContext(Hashtable<String, Object> env, ConnectionSettings settings) throws NamingException {
+			super(true);
+			myProps = new Hashtable<Object, Object>(env);
+			_settings = settings;
+		}
+
+		@Override
+		public Object lookup(String name) throws NamingException {
+			if (myProps != null && AmqpJmsClient.CONNECTION_FACTORY_LOOKUP.equals(name)) {
+				return _settings._connectionFactory;
+			}
+			return super.lookup(name);
+		}
+	}
+
+	/**
+	 * Creates the session that backs a single producer index when producers do
+	 * not share the client session. Each such session has its own lock and its
+	 * own AMQP session (and completion thread) in qpid.
+	 */
+	public Session createProducerSession(Connection connection, boolean isTransacted) throws JMSException {
+		return connection.createSession(isTransacted, Session.AUTO_ACKNOWLEDGE);
+	}
+
 	public JmsClientTransactedSession createClientTransactedSession(AbstractClient client, Connection connection, Session transactedSession, RuntimeProperties rprops) {
 		return new JmsClientTransactedSession(client, transactedSession, rprops);
 	}
@@ -16,6 +16,7 @@
 package com.solacesystems.pubsub.sdkperf.jms.amqp;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.CompletionListener;
 import javax.jms.ConnectionFactory;
@@ -29,11 +30,30 @@ import javax.jms.Topic;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+import com.solacesystems.pubsub.sdkperf.core.BasicMsgRep;
+import com.solacesystems.pubsub.sdkperf.core.GenericMessageDeliveryMode;
+import com.solacesystems.pubsub.sdkperf.core.GenericStatType;
 import com.solacesystems.pubsub.sdkperf.jms.amqp.AmqpJmsClient;
 
-public class AmqpJms_2_0_Client extends AmqpJmsClient implements CompletionListener {
+public class AmqpJms_2_0_Client extends AmqpJmsClient {
 
 	private static final Log Trace = LogFactory.getLog(AmqpJms_2_0_Client.class);
+	private static final long DEFAULT_PUB_WINDOW_TIMEOUT_MSEC = 30000;
+	private static final long DEFAULT_RAMP_STEP_MSEC = 10000;
+	private static final double DEFAULT_RAMP_LATENCY_PERCENTILE = 99.0;
+	private static final long DEFAULT_RAMP_LATENCY_SLO_USEC = 100000;
+	private static final double DEFAULT_RAMP_RATE_TOLERANCE_PERCENT = 5.0;
+
+	private AsyncPublishWindow[] _pubWindows;
+	// Set when sdkperf.amqp.fixedRate is on: one send schedule per producer index.
+	private FixedRateSchedule[] _schedules = null;
+	// Set when sdkperf.amqp.rampStartRate is above 0.
+	private RateRamp _ramp = null;
+	private CompletionListener[] _completionListeners;
+	private long _pubWindowTimeoutMsec;
+	private long _completionTraceInterval = 0;
+	private String _msgTypeStr = "";
 
 	public AmqpJms_2_0_Client() {
 		super();
@@ -43,22 +63,281 @@ public class AmqpJms_2_0_Client extends AmqpJmsClient implements CompletionListe
 		super(cf, queueMap, topicMap);
 	}
 
+	@Override
+	public void init(RuntimeProperties perfProps, int clientIdInt) throws Exception {
+		super.init(perfProps, clientIdInt);
+
+		int windowSize = _pluginProps.getInt(AmqpPluginProperties.PUB_WINDOW_SIZE, 0);
+		_pubWindowTimeoutMsec = _pluginProps.getLong(AmqpPluginProperties.PUB_WINDOW_TIMEOUT_MSEC,
+				DEFAULT_PUB_WINDOW_TIMEOUT_MSEC);
+		_completionTraceInterval = _pluginProps.getLong(AmqpPluginProperties.COMPLETION_TRACE_INTERVAL, 0);
+		GenericMessageDeliveryMode msgType = (GenericMessageDeliveryMode) perfProps
+				.getProperty(RuntimeProperties.PUB_MESSAGE_TYPE);
+		_msgTypeStr = (msgType == null) ? "" : " " + msgType.toString().toLowerCase();
+
+		boolean fixedRate = _pluginProps.getBoolean(AmqpPluginProperties.FIXED_RATE, false);
+		if (fixedRate) {
+			Double rate = perfProps.getDoubleProperty(RuntimeProperties.PUBLISH_RATE_PER_PUB);
+			if (rate == null || rate <= 0) {
+				throw new IllegalArgumentException("Plugin property " + AmqpPluginProperties.FIXED_RATE
+						+ " needs a publish rate (-mr)");
+			}
+			_schedules = new FixedRateSchedule[_producers.length];
+			for (int i = 0; i < _producers.length; ++i) {
+				_schedules[i] = new FixedRateSchedule(rate);
+			}
+		}
+
+		double rampStartRate = _pluginProps.getDouble(AmqpPluginProperties.RAMP_START_RATE, 0);
+		if (rampStartRate > 0 && fixedRate) {
+			throw new IllegalArgumentException("Plugin properties " + AmqpPluginProperties.RAMP_START_RATE + " and "
+					+ AmqpPluginProperties.FIXED_RATE + " cannot be combined");
+		}
+
+		// One window and one listener per producer index, so credit and counts are kept per producer.
+		_pubWindows = new AsyncPublishWindow[_producers.length];
+		_completionListeners = new CompletionListener[_producers.length];
+		for (int i = 0; i < _producers.length; ++i) {
+			_pubWindows[i] = new AsyncPublishWindow(i, windowSize, fixedRate || rampStartRate > 0);
+			_completionListeners[i] = new ProducerCompletionListener(_pubWindows[i]);
+		}
+
+		if (rampStartRate > 0) {
+			Double sdkperfRate = perfProps.getDoubleProperty(RuntimeProperties.PUBLISH_RATE_PER_PUB);
+			if (sdkperfRate != null && sdkperfRate > 0) {
+				Trace.warn("CLIENT " + _clientIdStr + ": the rate ramp cannot go above -mr=" + sdkperfRate
+						+ ", use -mr=0 to let it set the rate.");
+			}
+			_ramp = new RateRamp(_clientIdStr, _pubWindows, rampStartRate,
+					_pluginProps.getDouble(AmqpPluginProperties.RAMP_STEP_RATE, rampStartRate),
+					_pluginProps.getDouble(AmqpPluginProperties.RAMP_MAX_RATE, 0),
+					_pluginProps.getLong(AmqpPluginProperties.RAMP_STEP_MSEC, DEFAULT_RAMP_STEP_MSEC),
+					_pluginProps.getDouble(AmqpPluginProperties.RAMP_LATENCY_PERCENTILE, DEFAULT_RAMP_LATENCY_PERCENTILE),
+					_pluginProps.getLong(AmqpPluginProperties.RAMP_LATENCY_SLO_USEC, DEFAULT_RAMP_LATENCY_SLO_USEC),
+					_pluginProps.getDouble(AmqpPluginProperties.RAMP_MAX_ERROR_PERCENT, 0),
+					_pluginProps.getDouble(AmqpPluginProperties.RAMP_RATE_TOLERANCE_PERCENT,
+							DEFAULT_RAMP_RATE_TOLERANCE_PERCENT));
+		}
+	}
+
+	@Override
+	public void publishMsg(BasicMsgRep msgRep, int pubSessionIndex) throws Exception {
+		if (_schedules != null) {
+			// Wait for the intended send time before the message is even built.
+			getPublishContext(pubSessionIndex).setIntendedNanos(_schedules[pubSessionIndex].awaitNext());
+		} else if (_ramp != null) {
+			getPublishContext(pubSessionIndex).setIntendedNanos(_ramp.awaitNext(pubSessionIndex));
+		}
+		super.publishMsg(msgRep, pubSessionIndex);
+	}
+
 	@Override
 	protected void publishMessage(MessageProducer prod, Destination dest, Message msg) throws JMSException {
-		prod.send(dest, msg, (CompletionListener) this);
+		PublishContext ctx = getCurrentPublish();
+		int pubIndex = ctx.getProducerIndex();
+		AsyncPublishWindow window = _pubWindows[pubIndex];
+		AmqpFlightRecorder recorder = getFlightRecorder();
+		Object publishEvent = recorder.publishStart();
+		long stallStartNanos = 0;
+		long windowClosed = 0;
+		if (recorder.wantWindowStalls()) {
+			stallStartNanos = System.nanoTime();
+			windowClosed = window.getWindowClosed();
+		}
+		boolean acquired;
+		try {
+			acquired = window.acquire(_pubWindowTimeoutMsec, ctx.getIntendedNanos());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JMSException("CLIENT " + _clientIdStr + ": interrupted waiting for publish window credit");
+		}
+		if (stallStartNanos != 0 && window.getWindowClosed() != windowClosed) {
+			recorder.windowStalled(System.nanoTime() - stallStartNanos, pubIndex, window.getWindowSize());
+		}
+		if (!acquired) {
+			throw new JMSException("CLIENT " + _clientIdStr + ": publish window of " + window.getWindowSize()
+					+ " messages is full on producer " + pubIndex + ", no acknowledgement within "
+					+ _pubWindowTimeoutMsec + " ms");
+		}
+
+		try {
+			msg = stampForSend(ctx, msg);
+			MessageProducer bound = getBoundProducer(pubIndex, prod, dest);
+			if (bound != prod) {
+				bound.send(msg, _completionListeners[pubIndex]);
+			} else {
+				prod.send(dest, msg, _completionListeners[pubIndex]);
+			}
+			if (publishEvent != null) {
+				recorder.publishEnd(publishEvent, pubIndex, window.getOutstanding());
+			}
+		} catch (JMSException e) {
+			window.sendRejected();
+			throw e;
+		} catch (RuntimeException e) {
+			window.sendRejected();
+			throw e;
+		}
 	}
-	
-	public void onCompletion(Message msg) {
-		Trace.info("CLIENT " + _clientIdStr + " published message asynchronously. Message:" + msg.toString() + "\nCLIENT " + _clientIdStr );
-		_asyncExceptionOccured = false;
+
+	/**
+	 * Runs on the qpid I/O thread for every acknowledged message, so it must not
+	 * allocate. Per-message tracing and flight recorder events only happen for
+	 * sampled messages or with debug on.
+	 */
+	protected void onCompletion(AsyncPublishWindow window, Message msg) {
+		long latencyNanos = window.onAcked();
+		AmqpFlightRecorder recorder = getFlightRecorder();
+		if (latencyNanos >= 0 && recorder.sampleAck()) {
+			recorder.acked(window.getProducerIndex(), latencyNanos);
+		}
+		if (_completionTraceInterval > 0 && (window.getAcked() % _completionTraceInterval) == 0) {
+			Trace.info("CLIENT " + _clientIdStr + " published message asynchronously on producer "
+					+ window.getProducerIndex() + " (ack latency " + latencyNanos + " ns). Message:" + msg);
+		} else if (Trace.isDebugEnabled()) {
+			Trace.debug("CLIENT " + _clientIdStr + " published message asynchronously on producer "
+					+ window.getProducerIndex() + " (ack latency " + latencyNanos + " ns). Message:" + msg);
+		}
 	}
 
-	public void onException(Message msg, Exception e) {
+	protected void onException(AsyncPublishWindow window, Message msg, Exception e) {
+		window.onFailed();
+		getFlightRecorder().sendFailed(window.getProducerIndex(), e);
 		Trace.warn("CLIENT " + _clientIdStr + " failed to publish message asynchronously. Message:" + msg.toString() + "\nCLIENT " + _clientIdStr + ": Exception listener error.", e);
 		updateLastErrorResponse(e);
 		_asyncExceptionOccured = true;
 	}
 
-}
+	@Override
+	public void disconnect() throws Exception {
+		// Let in-flight sends settle so the acked/failed counts are exact.
+		for (AsyncPublishWindow window : _pubWindows) {
+			if (!window.awaitEmpty(_pubWindowTimeoutMsec)) {
+				Trace.warn("CLIENT " + _clientIdStr + ": " + window.getOutstanding()
+						+ " async sends still unacknowledged on producer " + window.getProducerIndex());
+			}
+			Trace.info("CLIENT " + _clientIdStr + ": " + window);
+			LatencyHistogram.Snapshot ackLatency = window.getAckLatency();
+			if (ackLatency.getTotalCount() > 0) {
+				Trace.info("CLIENT " + _clientIdStr + ": producer " + window.getProducerIndex() + _msgTypeStr
+						+ " ack latency (us) total: " + ackLatency.toSummaryString());
+			}
+			if (window.hasCorrectedLatency()) {
+				Trace.info("CLIENT " + _clientIdStr + ": producer " + window.getProducerIndex() + _msgTypeStr
+						+ " ack latency from intended send time (us) total: "
+						+ window.getCorrectedLatency().toSummaryString() + getScheduleStats(window));
+			}
+		}
+		if (_ramp != null && !_ramp.isDone()) {
+			_ramp.logResult();
+		}
+		super.disconnect();
+	}
 
+	@Override
+	public void reportIntervalStats() {
+		super.reportIntervalStats();
+		for (AsyncPublishWindow window : _pubWindows) {
+			LatencyHistogram.Snapshot ackLatency = window.getIntervalAckLatency();
+			Trace.info("CLIENT " + _clientIdStr + ": producer " + window.getProducerIndex() + _msgTypeStr
+					+ " ack latency (us) interval: " + ackLatency.toSummaryString() + ", outstanding="
+					+ window.getOutstanding());
+			if (window.hasCorrectedLatency()) {
+				Trace.info("CLIENT " + _clientIdStr + ": producer " + window.getProducerIndex() + _msgTypeStr
+						+ " ack latency from intended send time (us) interval: "
+						+ window.getIntervalCorrectedLatency().toSummaryString() + getScheduleStats(window));
+			}
+		}
+	}
 
+	/** Empty with the rate ramp, whose schedule changes every step. */
+	private String getScheduleStats(AsyncPublishWindow window) {
+		if (_schedules == null) {
+			return "";
+		}
+		FixedRateSchedule schedule = _schedules[window.getProducerIndex()];
+		return ", late sends=" + schedule.getLateSends() + ", max lag (us)="
+				+ TimeUnit.NANOSECONDS.toMicros(schedule.getMaxLagNanos());
+	}
+
+	@Override
+	public void resetStats() {
+		super.resetStats();
+		if (_pubWindows != null) {
+			for (AsyncPublishWindow window : _pubWindows) {
+				window.resetStats();
+			}
+		}
+		if (_schedules != null) {
+			for (FixedRateSchedule schedule : _schedules) {
+				schedule.resetStats();
+			}
+		}
+		if (_ramp != null) {
+			_ramp.resetStats();
+		}
+	}
+
+	@Override
+	public long getSdkStat(GenericStatType statName) throws Exception {
+		if (statName.equals(GenericStatType.RELIABLE_MSGS_SENT_CONFIRMED)) {
+			long acked = 0;
+			for (AsyncPublishWindow window : _pubWindows) {
+				acked += window.getAcked();
+			}
+			return acked;
+		}
+		if (statName.equals(GenericStatType.PUBLISHER_WINDOW_CLOSED)) {
+			long windowClosed = 0;
+			for (AsyncPublishWindow window : _pubWindows) {
+				windowClosed += window.getWindowClosed();
+			}
+			return windowClosed;
+		}
+		return super.getSdkStat(statName);
+	}
+
+	public AsyncPublishWindow getPublishWindow(int producerIndex) {
+		return _pubWindows[producerIndex];
+	}
+
+	public AsyncPublishWindow[] getPublishWindows() {
+		return _pubWindows;
+	}
+
+	/** The rate ramp with sdkperf.amqp.rampStartRate set, otherwise null. */
+	public RateRamp getRateRamp() {
+		return _ramp;
+	}
+
+	@Override
+	public long getAsyncSendsFailed() {
+		long failed = 0;
+		for (AsyncPublishWindow window : _pubWindows) {
+			failed += window.getFailed();
+		}
+		return failed;
+	}
+
+	/**
+	 * Completion listener bound to one producer index, so each callback returns
+	 * credit to the window that handed it out.
+	 */
+	private final class ProducerCompletionListener implements CompletionListener {
+
+		private final AsyncPublishWindow _window;
+
+		ProducerCompletionListener(AsyncPublishWindow window) {
+			_window = window;
+		}
+
+		public void onCompletion(Message msg) {
+			AmqpJms_2_0_Client.this.onCompletion(_window, msg);
+		}
+
+		public void onException(Message msg, Exception e) {
+			AmqpJms_2_0_Client.this.onException(_window, msg, e);
+		}
+	}
+
+}
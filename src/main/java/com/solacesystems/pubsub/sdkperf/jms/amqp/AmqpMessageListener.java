@@ -0,0 +1,374 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.solacesystems.pubsub.sdkperf.jms.core.AbstractJmsClient;
+import com.solacesystems.pubsub.sdkperf.jms.core.BasicMessageListener;
+
+/**
+ * Message listener for AMQP consumers that counts deliveries and, on a
+ * CLIENT_ACKNOWLEDGE session, acknowledges in batches: after ackBatchSize
+ * messages, or once the oldest unacknowledged message is ackBatchTimeMsec
+ * old. Each acknowledge() settles every message the session has delivered,
+ * so one call replaces a disposition per message. On the shared client
+ * session that includes the messages of every other consumer on it, the
+ * temporary reply queue consumer too; sessionPerConsumer keeps each batch
+ * to its own consumer. The time limit is checked when a message arrives
+ * and by a flush scheduled on a shared timer thread when a batch starts, so
+ * an idle consumer does not hold a partial batch; flushAcks() settles what
+ * is left at the end.
+ * A listener may own the session its consumer was created on, in which case
+ * qpid delivers to it on that session's own dispatcher thread.
+ * <p>
+ * In end-to-end latency mode the send time the publisher put in each message
+ * is read before any other processing and the one-way latency is recorded.
+ * With failover stats on, the publisher sequence numbers are checked for gaps
+ * and repeats, and redeliveries are counted. Compressed payloads are
+ * restored before sdkperf sees the message. A sample of deliveries is
+ * recorded by the client's flight recorder.
+ */
+public class AmqpMessageListener extends BasicMessageListener {
+
+	private static final Log Trace = LogFactory.getLog(AmqpMessageListener.class);
+	private static ScheduledExecutorService _ackTimer = null;
+
+	private final int _ackBatchSize;
+	private final long _ackBatchNanos;
+	private Session _session = null;
+	private String _statsName;
+	private boolean _wantEndToEndLatency = false;
+	// Last sequence number seen from each publisher, only used on the delivery thread.
+	private Map<String, long[]> _lastSequences = null;
+	private PayloadCompressor _compressor = null;
+	private AmqpFlightRecorder _flightRecorder = AmqpFlightRecorder.NONE;
+
+	private int _unacked = 0;
+	private long _firstUnackedNanos = 0;
+	private Message _lastUnacked = null;
+	private boolean _ackFlushScheduled = false;
+
+	private final LatencyHistogram _ackLatency = new LatencyHistogram();
+	private final LatencyHistogram _e2eLatency = new LatencyHistogram();
+	private volatile long _received = 0;
+	private volatile long _acks = 0;
+	private volatile long _msgsAcked = 0;
+	private volatile long _lost = 0;
+	private volatile long _duplicates = 0;
+	private volatile long _redelivered = 0;
+
+	private LatencyHistogram.Snapshot _lastAckLatency = null;
+	private LatencyHistogram.Snapshot _lastE2eLatency = null;
+	private long _lastReceived = 0;
+	private long _lastAcks = 0;
+	private long _lastMsgsAcked = 0;
+	private long _lastReportNanos = System.nanoTime();
+
+	/**
+	 * @param ackBatchSize messages per acknowledge() on a CLIENT_ACKNOWLEDGE
+	 *            session, 0 when the session acknowledges by itself
+	 */
+	public AmqpMessageListener(AbstractJmsClient client, String destination, boolean isTopic, Topic topic,
+			boolean isNonDurable, MessageConsumer consumer, int ackBatchSize, long ackBatchTimeMsec) {
+		super(client, destination, isTopic, topic, isNonDurable, null, consumer);
+		_ackBatchSize = ackBatchSize;
+		_ackBatchNanos = ackBatchTimeMsec * 1000000L;
+		_statsName = destination;
+	}
+
+	/** The session this listener's consumer was created on, if the listener owns it, else null. */
+	public Session getSession() {
+		return _session;
+	}
+
+	public void setSession(Session session) {
+		_session = session;
+	}
+
+	public void setWantEndToEndLatency(boolean wantEndToEndLatency) {
+		_wantEndToEndLatency = wantEndToEndLatency;
+	}
+
+	public void setWantFailoverStats(boolean wantFailoverStats) {
+		_lastSequences = wantFailoverStats ? new HashMap<String, long[]>() : null;
+	}
+
+	/** Restores compressed payloads before sdkperf processes a message. */
+	public void setCompressor(PayloadCompressor compressor) {
+		_compressor = compressor;
+	}
+
+	public void setFlightRecorder(AmqpFlightRecorder flightRecorder) {
+		_flightRecorder = flightRecorder;
+	}
+
+	/** Name used in the stats lines, the destination by default. */
+	public void setStatsName(String statsName) {
+		_statsName = statsName;
+	}
+
+	@Override
+	public void onMessage(Message message) {
+		Object dispatchEvent = _flightRecorder.dispatchStart();
+		if (_wantEndToEndLatency) {
+			recordEndToEndLatency(message, EndToEndLatency.now());
+		}
+		if (_lastSequences != null) {
+			checkSequence(message);
+		}
+		if (_compressor != null) {
+			try {
+				_compressor.decompress(message);
+			} catch (JMSException e) {
+				Trace.warn("Failed to decompress a message from " + _destination + ".", e);
+			}
+		}
+		super.onMessage(message);
+		_received++;
+		if (dispatchEvent != null) {
+			_flightRecorder.dispatchEnd(dispatchEvent, _destination);
+		}
+		if (_ackBatchSize <= 0) {
+			return;
+		}
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (_unacked++ == 0) {
+				_firstUnackedNanos = now;
+			}
+			_lastUnacked = message;
+			if (_unacked >= _ackBatchSize || (_ackBatchNanos > 0 && now - _firstUnackedNanos >= _ackBatchNanos)) {
+				acknowledgeBatch(now);
+			} else if (_ackBatchNanos > 0 && !_ackFlushScheduled) {
+				scheduleAckFlush(_ackBatchNanos);
+			}
+		}
+	}
+
+	/** Acknowledges the open batch once its first message is ackBatchTimeMsec old. */
+	private void scheduleAckFlush(long delayNanos) {
+		_ackFlushScheduled = true;
+		getAckTimer().schedule(new Runnable() {
+			public void run() {
+				flushAgedAcks();
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized void flushAgedAcks() {
+		_ackFlushScheduled = false;
+		if (_unacked == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		long age = now - _firstUnackedNanos;
+		if (age >= _ackBatchNanos) {
+			acknowledgeBatch(now);
+		} else {
+			// The batch this flush was scheduled for is gone and a newer one started.
+			scheduleAckFlush(_ackBatchNanos - age);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getAckTimer() {
+		if (_ackTimer == null) {
+			_ackTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "sdkperf-amqp-ack-flush");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return _ackTimer;
+	}
+
+	private void recordEndToEndLatency(Message message, long receiveNanos) {
+		try {
+			Object sendNanos = message.getObjectProperty(EndToEndLatency.SEND_TIME_PROPERTY);
+			if (sendNanos instanceof Long) {
+				_e2eLatency.recordValue(EndToEndLatency.record((Long) sendNanos, receiveNanos));
+			}
+		} catch (JMSException e) {
+			if (Trace.isDebugEnabled()) {
+				Trace.debug("Failed to read the send time of a message from " + _destination + ".", e);
+			}
+		}
+	}
+
+	private void checkSequence(Message message) {
+		try {
+			if (message.getJMSRedelivered()) {
+				_redelivered++;
+			}
+			Object publisher = message.getObjectProperty(FailoverRecorder.PUBLISHER_PROPERTY);
+			Object sequence = message.getObjectProperty(FailoverRecorder.SEQUENCE_PROPERTY);
+			if (!(publisher instanceof String) || !(sequence instanceof Long)) {
+				return;
+			}
+			long seq = (Long) sequence;
+			long[] last = _lastSequences.get(publisher);
+			if (last == null) {
+				// The first message seen from a publisher starts its sequence.
+				_lastSequences.put((String) publisher, new long[] { seq });
+			} else if (seq <= last[0]) {
+				_duplicates++;
+			} else {
+				if (seq > last[0] + 1) {
+					_lost += seq - last[0] - 1;
+				}
+				last[0] = seq;
+			}
+		} catch (JMSException e) {
+			if (Trace.isDebugEnabled()) {
+				Trace.debug("Failed to read the sequence number of a message from " + _destination + ".", e);
+			}
+		}
+	}
+
+	/** Acknowledges the messages of an unfinished batch. */
+	public synchronized void flushAcks() {
+		if (_unacked > 0) {
+			acknowledgeBatch(System.nanoTime());
+		}
+	}
+
+	private void acknowledgeBatch(long startNanos) {
+		try {
+			_lastUnacked.acknowledge();
+			_ackLatency.recordValue(System.nanoTime() - startNanos);
+			_acks++;
+			_msgsAcked += _unacked;
+		} catch (JMSException e) {
+			Trace.warn("Failed to acknowledge " + _unacked + " messages from " + _destination + ".", e);
+			_jmsClient.updateLastErrorResponse((Exception) e);
+		} finally {
+			_unacked = 0;
+			_lastUnacked = null;
+		}
+	}
+
+	public long getReceived() {
+		return _received;
+	}
+
+	/** End-to-end latency since the start of the run (or the last stats reset). */
+	public LatencyHistogram.Snapshot getEndToEndLatency() {
+		return _e2eLatency.snapshot();
+	}
+
+	/** Messages missing from the publisher sequences, with failover stats on. */
+	public long getLost() {
+		return _lost;
+	}
+
+	/** Messages at or behind the last sequence number seen from their publisher, with failover stats on. */
+	public long getDuplicates() {
+		return _duplicates;
+	}
+
+	public long getRedelivered() {
+		return _redelivered;
+	}
+
+	public long getAcks() {
+		return _acks;
+	}
+
+	/** Messages settled by the acknowledge() calls so far. */
+	public long getMsgsAcked() {
+		return _msgsAcked;
+	}
+
+	public void resetStats() {
+		_ackLatency.reset();
+		_e2eLatency.reset();
+		_received = 0;
+		_acks = 0;
+		_msgsAcked = 0;
+		synchronized (this) {
+			_lastAckLatency = null;
+			_lastE2eLatency = null;
+			_lastReceived = 0;
+			_lastAcks = 0;
+			_lastMsgsAcked = 0;
+			_lastReportNanos = System.nanoTime();
+		}
+	}
+
+	/** Receive rate and acknowledgements since the previous call. */
+	public synchronized String getIntervalStats() {
+		long now = System.nanoTime();
+		long received = _received;
+		long acks = _acks;
+		long msgsAcked = _msgsAcked;
+		double seconds = (now - _lastReportNanos) / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append("consumer ").append(_statsName).append(" rx msgs/s=")
+				.append((seconds > 0) ? Math.round((received - _lastReceived) / seconds) : 0);
+		if (_ackBatchSize > 0) {
+			LatencyHistogram.Snapshot ackLatency = _ackLatency.snapshot();
+			long intervalAcks = acks - _lastAcks;
+			sb.append(", acks=").append(intervalAcks).append(", msgs/ack=")
+					.append((intervalAcks == 0) ? 0 : (msgsAcked - _lastMsgsAcked) / intervalAcks)
+					.append(", ack latency (us): ")
+					.append(((_lastAckLatency == null) ? ackLatency : ackLatency.since(_lastAckLatency))
+							.toSummaryString());
+			_lastAckLatency = ackLatency;
+		}
+		if (_wantEndToEndLatency) {
+			LatencyHistogram.Snapshot e2eLatency = _e2eLatency.snapshot();
+			sb.append(", e2e latency (us): ").append(
+					((_lastE2eLatency == null) ? e2eLatency : e2eLatency.since(_lastE2eLatency)).toSummaryString());
+			_lastE2eLatency = e2eLatency;
+		}
+		_lastReceived = received;
+		_lastAcks = acks;
+		_lastMsgsAcked = msgsAcked;
+		_lastReportNanos = now;
+		return sb.toString();
+	}
+
+	/** Totals for the whole run. */
+	public String getTotalStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("consumer ").append(_statsName).append(" received=").append(_received);
+		if (_ackBatchSize > 0) {
+			long acks = _acks;
+			sb.append(", acks=").append(acks).append(", msgs/ack=").append((acks == 0) ? 0 : _msgsAcked / acks)
+					.append(", ack latency (us): ").append(_ackLatency.snapshot().toSummaryString());
+		}
+		if (_wantEndToEndLatency) {
+			sb.append(", e2e latency (us): ").append(_e2eLatency.snapshot().toSummaryString());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes the metrics of every connected client while the run is going: as
+ * one JMX MBean per client and, when a port is configured, in Prometheus text
+ * format at http://host:port/metrics. All clients in the JVM share one HTTP
+ * server, started by the first client that registers.
+ */
+public class AmqpMetricsExporter {
+
+	private static final Log Trace = LogFactory.getLog(AmqpMetricsExporter.class);
+
+	private static final String JMX_DOMAIN = "com.solacesystems.pubsub.sdkperf.jms.amqp";
+	private static final String METRICS_PATH = "/metrics";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final List<AmqpClientMetrics> _metrics = new CopyOnWriteArrayList<AmqpClientMetrics>();
+	private static HttpServer _httpServer = null;
+	private static boolean _httpServerFailed = false;
+
+	private AmqpMetricsExporter() {
+	}
+
+	public static synchronized void register(AmqpJmsClient client, AmqpPluginProperties props) {
+		boolean wantJmx = props.getBoolean(AmqpPluginProperties.METRICS_JMX, false);
+		int httpPort = props.getInt(AmqpPluginProperties.METRICS_HTTP_PORT, 0);
+		if (!wantJmx && httpPort <= 0) {
+			return;
+		}
+		AmqpClientMetrics metrics = new AmqpClientMetrics(client);
+		_metrics.add(metrics);
+		if (wantJmx) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, getObjectName(metrics));
+			} catch (JMException e) {
+				Trace.warn("CLIENT " + metrics.getClientId() + ": failed to register metrics MBean.", e);
+			}
+		}
+		if (httpPort > 0 && _httpServer == null && !_httpServerFailed) {
+			startHttpServer(props.getString(AmqpPluginProperties.METRICS_HTTP_HOST, "127.0.0.1"), httpPort);
+		}
+	}
+
+	public static synchronized void unregister(AmqpJmsClient client) {
+		for (AmqpClientMetrics metrics : _metrics) {
+			if (metrics.getClient() != client) {
+				continue;
+			}
+			_metrics.remove(metrics);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				ObjectName name = getObjectName(metrics);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				Trace.warn("CLIENT " + metrics.getClientId() + ": failed to unregister metrics MBean.", e);
+			}
+		}
+	}
+
+	private static ObjectName getObjectName(AmqpClientMetrics metrics) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=AmqpClient,name=" + ObjectName.quote(metrics.getClientId()));
+	}
+
+	private static void startHttpServer(String host, int port) {
+		// Threads inherit daemon status from the thread that starts them, so the
+		// server is started from a daemon thread to keep it from holding up JVM exit.
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sdkperf-amqp-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			final HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+			server.createContext(METRICS_PATH, new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = toPrometheusText().getBytes(UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream os = exchange.getResponseBody();
+					try {
+						os.write(body);
+					} finally {
+						os.close();
+					}
+				}
+			});
+			server.setExecutor(executor);
+			executor.submit(new Callable<Void>() {
+				public Void call() {
+					server.start();
+					return null;
+				}
+			}).get();
+			_httpServer = server;
+			Trace.info("Serving Prometheus metrics at http://" + host + ":" + port + METRICS_PATH);
+		} catch (Exception e) {
+			_httpServerFailed = true;
+			executor.shutdown();
+			Trace.error("Failed to start the metrics HTTP server on " + host + ":" + port + ".", e);
+		}
+	}
+
+	/** All registered clients in Prometheus text exposition format. */
+	public static String toPrometheusText() {
+		List<AmqpClientMetrics> metrics = _metrics;
+		StringBuilder sb = new StringBuilder();
+
+		writeHeader(sb, "sdkperf_amqp_published_total", "counter", "Messages published.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_published_total", m, null, m.getPublished());
+		}
+		writeHeader(sb, "sdkperf_amqp_async_acked_total", "counter", "Async sends acknowledged by the broker.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_async_acked_total", m, null, m.getAsyncAcked());
+		}
+		writeHeader(sb, "sdkperf_amqp_async_failed_total", "counter", "Async sends completed with an exception.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_async_failed_total", m, null, m.getAsyncFailed());
+		}
+		writeHeader(sb, "sdkperf_amqp_async_outstanding", "gauge", "Async sends not yet acknowledged.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_async_outstanding", m, null, m.getAsyncOutstanding());
+		}
+		writeHeader(sb, "sdkperf_amqp_received_total", "counter", "Messages received.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_received_total", m, null, m.getReceived());
+		}
+		writeHeader(sb, "sdkperf_amqp_connection_interruptions_total", "counter", "Connections lost by failover.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_connection_interruptions_total", m, null, m.getConnectionInterruptions());
+		}
+		writeHeader(sb, "sdkperf_amqp_connection_restorations_total", "counter", "Connections restored by failover.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSample(sb, "sdkperf_amqp_connection_restorations_total", m, null, m.getConnectionRestorations());
+		}
+
+		writeHeader(sb, "sdkperf_amqp_ack_latency_seconds", "summary", "Publish-to-ack latency of async sends.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSummary(sb, "sdkperf_amqp_ack_latency_seconds", m, m.getAckLatency());
+		}
+		writeHeader(sb, "sdkperf_amqp_e2e_latency_seconds", "summary", "End-to-end latency of received messages.");
+		for (AmqpClientMetrics m : metrics) {
+			writeSummary(sb, "sdkperf_amqp_e2e_latency_seconds", m, m.getEndToEndLatency());
+		}
+		return sb.toString();
+	}
+
+	private static void writeHeader(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void writeSummary(StringBuilder sb, String name, AmqpClientMetrics m,
+			LatencyHistogram.Snapshot snapshot) {
+		if (snapshot == null) {
+			return;
+		}
+		for (String quantile : new String[] { "0.5", "0.99", "0.999" }) {
+			writeSample(sb, name, m, quantile,
+					snapshot.getValueAtPercentile(Double.parseDouble(quantile) * 100.0) / 1e9);
+		}
+		writeSample(sb, name + "_sum", m, null, snapshot.getSum() / 1e9);
+		writeSample(sb, name + "_count", m, null, snapshot.getTotalCount());
+	}
+
+	private static void writeSample(StringBuilder sb, String name, AmqpClientMetrics m, String quantile,
+			Object value) {
+		sb.append(name).append("{client=\"").append(escapeLabel(m.getClientId())).append('"');
+		if (quantile != null) {
+			sb.append(",quantile=\"").append(quantile).append('"');
+		}
+		sb.append("} ").append(value).append('\n');
+	}
+
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
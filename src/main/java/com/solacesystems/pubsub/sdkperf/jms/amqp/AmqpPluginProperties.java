@@ -0,0 +1,215 @@
+/** 
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *  
+ *  http://www.solace.com
+ *  
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is   
+ *  authorized only with written permission.  Use of part or modified  
+ *  source code must carry prominent notices stating that you modified it, 
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+
+/**
+ * Options understood by the plugin itself rather than by qpid. They are passed
+ * to sdkperf in the extra properties list using the "sdkperf.amqp." prefix, for
+ * example -epl="sdkperf.amqp.pubWindowSize,256". When a key is not in the list
+ * the JVM system property of the same name is used instead. Keys with this
+ * prefix are never forwarded to qpid as URI or JNDI options.
+ */
+public class AmqpPluginProperties {
+
+	public static final String PREFIX = "sdkperf.amqp.";
+
+	/** Max number of unacknowledged async sends per producer, 0 for no limit. */
+	public static final String PUB_WINDOW_SIZE = PREFIX + "pubWindowSize";
+	/** How long a send waits for window credit before failing, 0 to wait forever. */
+	public static final String PUB_WINDOW_TIMEOUT_MSEC = PREFIX + "pubWindowTimeoutMsec";
+	/** Trace every Nth async send completion at INFO, 0 to trace none. */
+	public static final String COMPLETION_TRACE_INTERVAL = PREFIX + "completionTraceInterval";
+	/** Seconds between interval stats reports, 0 to report only at the end of the run. */
+	public static final String STATS_INTERVAL_SEC = PREFIX + "statsIntervalSec";
+	/** Give each producer index its own JMS session instead of sharing the client session. */
+	public static final String SESSION_PER_PRODUCER = PREFIX + "sessionPerProducer";
+	/** Give each producer index its own connection (and session). */
+	public static final String CONNECTION_PER_PRODUCER = PREFIX + "connectionPerProducer";
+	/** Destination-bound producers (sender links) kept per producer index, 0 to send on the anonymous producer. */
+	public static final String PRODUCER_CACHE_SIZE = PREFIX + "producerCacheSize";
+	/** Share physical connections between clients through AmqpConnectionPool. */
+	public static final String CONNECTION_POOL = PREFIX + "connectionPool";
+	/** Max number of clients (each with its own session) on one pooled connection. */
+	public static final String POOL_SESSIONS_PER_CONNECTION = PREFIX + "poolSessionsPerConnection";
+	/** Max number of pooled connections, and so qpid I/O threads, per connection URI; turns on the pool. */
+	public static final String IO_THREADS = PREFIX + "ioThreads";
+	/** Socket send buffer size in bytes (qpid transport.sendBufferSize). */
+	public static final String SOCKET_SEND_BUFFER_SIZE = PREFIX + "socketSendBufferSize";
+	/** Socket receive buffer size in bytes (qpid transport.receiveBufferSize). */
+	public static final String SOCKET_RECEIVE_BUFFER_SIZE = PREFIX + "socketReceiveBufferSize";
+	/** Use netty's native epoll transport where available (qpid transport.useEpoll). */
+	public static final String NATIVE_EPOLL = PREFIX + "nativeEpoll";
+
+	/** Number of clients connecting at the same time, 1 to connect them one after another. */
+	public static final String CONNECT_CONCURRENCY = PREFIX + "connectConcurrency";
+	/** Max number of client connects started per second when connecting in parallel, 0 for no limit. */
+	public static final String CONNECT_RAMP_PER_SEC = PREFIX + "connectRampPerSec";
+	/** Reuse prebuilt messages per producer instead of building one per send. */
+	public static final String MESSAGE_TEMPLATES = PREFIX + "messageTemplates";
+	/** Number of reusable messages per producer, must exceed the sends a producer can have in flight. */
+	public static final String TEMPLATE_RING_SIZE = PREFIX + "templateRingSize";
+	/** Size transactions to meet a commit latency target instead of using a fixed -txs. */
+	public static final String ADAPTIVE_COMMIT = PREFIX + "adaptiveCommit";
+	/** Commit latency the adaptive batch size aims for. */
+	public static final String COMMIT_TARGET_LATENCY_MSEC = PREFIX + "commitTargetLatencyMsec";
+	/** Smallest adaptive batch, in messages. */
+	public static final String COMMIT_MIN_BATCH = PREFIX + "commitMinBatch";
+	/** Largest adaptive batch, in messages. */
+	public static final String COMMIT_MAX_BATCH = PREFIX + "commitMaxBatch";
+	/** Commit an adaptive batch once its first message is this old, 0 for no time limit. */
+	public static final String COMMIT_WINDOW_MSEC = PREFIX + "commitWindowMsec";
+	/** Acknowledge mode of the client session used by consumers: auto, client or dups_ok. */
+	public static final String CONSUMER_ACK_MODE = PREFIX + "consumerAckMode";
+	/** Messages per acknowledge() call in client ack mode. */
+	public static final String ACK_BATCH_SIZE = PREFIX + "ackBatchSize";
+	/** Acknowledge a partial batch once its first message is this old, 0 for no time limit. */
+	public static final String ACK_BATCH_TIME_MSEC = PREFIX + "ackBatchTimeMsec";
+	/** Link credit (qpid prefetch) granted to each consumer. */
+	public static final String CONSUMER_PREFETCH = PREFIX + "consumerPrefetch";
+	/** Give each queue, topic endpoint and topic subscription its own JMS session. */
+	public static final String SESSION_PER_CONSUMER = PREFIX + "sessionPerConsumer";
+	/** With sessionPerConsumer, number of consumers (each on its own session) per queue. */
+	public static final String CONSUMERS_PER_QUEUE = PREFIX + "consumersPerQueue";
+	/** Stamp each sent message with its send time and record end-to-end latency on receive. */
+	public static final String END_TO_END_LATENCY = PREFIX + "endToEndLatency";
+	/** Publish on a fixed-rate schedule at -mr and also measure latency from each intended send time. */
+	public static final String FIXED_RATE = PREFIX + "fixedRate";
+	/** Register a JMX MBean with the metrics of each client. */
+	public static final String METRICS_JMX = PREFIX + "metricsJmx";
+	/** Port of the Prometheus metrics HTTP endpoint, 0 for none. */
+	public static final String METRICS_HTTP_PORT = PREFIX + "metricsHttpPort";
+	/** Address the metrics HTTP endpoint listens on. */
+	public static final String METRICS_HTTP_HOST = PREFIX + "metricsHttpHost";
+	/** Measure each failover: outage, rate recovery time, failed sends, lost and duplicate messages. */
+	public static final String FAILOVER_STATS = PREFIX + "failoverStats";
+	/** Percentage of the rate before a failover that counts as recovered. */
+	public static final String FAILOVER_RECOVERY_PERCENT = PREFIX + "failoverRecoveryPercent";
+	/** Send every message as a request with a reply-to temporary queue and measure request/reply round trips. */
+	public static final String REQUEST_REPLY = PREFIX + "requestReply";
+	/** With requestReply, max number of requests waiting for their reply at once. */
+	public static final String REQUEST_OUTSTANDING = PREFIX + "requestOutstanding";
+	/** With requestReply, time in milliseconds after which a request without a reply counts as timed out. */
+	public static final String REQUEST_TIMEOUT_MSEC = PREFIX + "requestTimeoutMsec";
+	/** Large message mode: memory-map this file and send its content as the body of every message. */
+	public static final String LARGE_MESSAGE_FILE = PREFIX + "largeMessageFile";
+	/** Large message mode without a file: size in bytes of the direct buffer sent as the body of every message. */
+	public static final String LARGE_MESSAGE_SIZE = PREFIX + "largeMessageSize";
+	/** Size in bytes of the chunks the large message payload is copied into the message with. */
+	public static final String LARGE_MESSAGE_CHUNK_SIZE = PREFIX + "largeMessageChunkSize";
+	/** Rate ramp: publish rate (msgs/s per client) of the first step, 0 for no ramp. */
+	public static final String RAMP_START_RATE = PREFIX + "rampStartRate";
+	/** Rate ramp: rate added at every step. */
+	public static final String RAMP_STEP_RATE = PREFIX + "rampStepRate";
+	/** Rate ramp: highest rate to try, 0 for no limit. */
+	public static final String RAMP_MAX_RATE = PREFIX + "rampMaxRate";
+	/** Rate ramp: duration of each step in milliseconds. */
+	public static final String RAMP_STEP_MSEC = PREFIX + "rampStepMsec";
+	/** Rate ramp: ack latency percentile checked against the latency SLO. */
+	public static final String RAMP_LATENCY_PERCENTILE = PREFIX + "rampLatencyPercentile";
+	/** Rate ramp: latency SLO in microseconds. */
+	public static final String RAMP_LATENCY_SLO_USEC = PREFIX + "rampLatencySloUsec";
+	/** Rate ramp: max percentage of sends that may fail in a step. */
+	public static final String RAMP_MAX_ERROR_PERCENT = PREFIX + "rampMaxErrorPercent";
+	/** Rate ramp: how far in percent the ack rate of a step may fall below its target rate. */
+	public static final String RAMP_RATE_TOLERANCE_PERCENT = PREFIX + "rampRateTolerancePercent";
+	/** Payload compression codec, used at the -z level (or the codec's default level without -z). */
+	public static final String COMPRESSION = PREFIX + "compression";
+	/** Emit JDK Flight Recorder events for sends, acks, connects and deliveries. */
+	public static final String FLIGHT_RECORDER = PREFIX + "flightRecorder";
+	/** Flight recorder: one in this many publishes, acks and deliveries is recorded. */
+	public static final String FLIGHT_RECORDER_SAMPLE_INTERVAL = PREFIX + "flightRecorderSampleInterval";
+
+	private final Map<String, String> _props = new HashMap<String, String>();
+
+	public AmqpPluginProperties(RuntimeProperties rxProps) {
+		List<?> extraProps = null;
+		try {
+			extraProps = (List<?>) rxProps.getProperty(RuntimeProperties.EXTRA_PROP_LIST);
+		} catch (Exception e) {
+			// No extra properties supplied via command line
+		}
+		if (extraProps != null) {
+			for (int i = 0; i < (extraProps.size() - 1); i += 2) {
+				String key = (String) extraProps.get(i);
+				if (isPluginProperty(key)) {
+					_props.put(key, ((String) extraProps.get(i + 1)).trim());
+				}
+			}
+		}
+	}
+
+	public static boolean isPluginProperty(String key) {
+		return key != null && key.startsWith(PREFIX);
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = _props.get(key);
+		if (value == null) {
+			value = System.getProperty(key);
+		}
+		return (value == null || value.isEmpty()) ? defaultValue : value;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Plugin property " + key + " must be an integer, got \"" + value + "\"");
+		}
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Plugin property " + key + " must be an integer, got \"" + value + "\"");
+		}
+	}
+
+	public double getDouble(String key, double defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Plugin property " + key + " must be a number, got \"" + value + "\"");
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return value.equalsIgnoreCase("true") || value.equals("1");
+	}
+}
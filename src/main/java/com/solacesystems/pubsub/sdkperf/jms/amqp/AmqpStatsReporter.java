@@ -0,0 +1,77 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Logs plugin statistics for every connected client at a fixed interval. All
+ * clients in the JVM share one daemon thread, started by the first client that
+ * registers with an interval above zero.
+ */
+public class AmqpStatsReporter {
+
+	private static final Log Trace = LogFactory.getLog(AmqpStatsReporter.class);
+
+	public interface Reportable {
+		void reportIntervalStats();
+	}
+
+	private static final Set<Reportable> _reportables = new CopyOnWriteArraySet<Reportable>();
+	private static ScheduledExecutorService _executor = null;
+
+	private AmqpStatsReporter() {
+	}
+
+	public static synchronized void register(Reportable reportable, int intervalSec) {
+		if (intervalSec <= 0) {
+			return;
+		}
+		_reportables.add(reportable);
+		if (_executor == null) {
+			_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "sdkperf-amqp-stats");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			_executor.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					for (Reportable r : _reportables) {
+						try {
+							r.reportIntervalStats();
+						} catch (Exception e) {
+							Trace.warn("Failed to report interval stats.", e);
+						}
+					}
+				}
+			}, intervalSec, intervalSec, TimeUnit.SECONDS);
+		}
+	}
+
+	public static void unregister(Reportable reportable) {
+		_reportables.remove(reportable);
+	}
+}
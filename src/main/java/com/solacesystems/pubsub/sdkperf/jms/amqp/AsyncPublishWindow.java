@@ -0,0 +1,271 @@
+/** 
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *  
+ *  http://www.solace.com
+ *  
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is   
+ *  authorized only with written permission.  Use of part or modified  
+ *  source code must carry prominent notices stating that you modified it, 
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the asynchronous sends of a single producer. A bounded window hands
+ * out one credit per send and takes it back when the broker settles the
+ * message, so no more than windowSize sends are ever outstanding. A window
+ * size of zero or less removes the bound but still keeps the counts.
+ * <p>
+ * The send time of every message is kept in a preallocated ring indexed by
+ * send sequence. JMS 2.0 calls the completion listener in send order for a
+ * producer, so the completion side finds its timestamp by its own sequence
+ * without any per-message allocation or lookup.
+ * <p>
+ * When sends follow a FixedRateSchedule, the intended send time is kept in a
+ * second ring and the latency from it is recorded as well, which unlike the
+ * publish-to-ack latency includes time spent waiting for the publisher or for
+ * window credit.
+ */
+public class AsyncPublishWindow {
+
+	/** Ring size used when the window is unbounded. */
+	private static final int UNBOUNDED_RING_SIZE = 65536;
+
+	private final int _producerIndex;
+	private final int _windowSize;
+	private final Semaphore _credits;
+
+	private final AtomicLong _outstanding = new AtomicLong();
+	private final AtomicLong _sent = new AtomicLong();
+	private final AtomicLong _acked = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final AtomicLong _windowClosed = new AtomicLong();
+
+	private final long[] _sendTimes;
+	private final int _sendTimesMask;
+	// Written by the publishing thread only.
+	private volatile long _sendSeq = 0;
+	// Written by the completion thread only.
+	private long _completionSeq = 0;
+	private final LatencyHistogram _ackLatency = new LatencyHistogram();
+	private LatencyHistogram.Snapshot _lastIntervalSnapshot = null;
+	// Only set when sends are scheduled.
+	private final long[] _intendedTimes;
+	private final LatencyHistogram _correctedLatency;
+	private LatencyHistogram.Snapshot _lastCorrectedSnapshot = null;
+
+	public AsyncPublishWindow(int producerIndex, int windowSize) {
+		this(producerIndex, windowSize, false);
+	}
+
+	/**
+	 * @param wantCorrectedLatency true if every send passes its intended send
+	 *            time to acquire()
+	 */
+	public AsyncPublishWindow(int producerIndex, int windowSize, boolean wantCorrectedLatency) {
+		_producerIndex = producerIndex;
+		_windowSize = windowSize;
+		_credits = (windowSize > 0) ? new Semaphore(windowSize) : null;
+
+		int ringSize = 1;
+		while (ringSize < ((windowSize > 0) ? windowSize : UNBOUNDED_RING_SIZE)) {
+			ringSize <<= 1;
+		}
+		_sendTimes = new long[ringSize];
+		_sendTimesMask = ringSize - 1;
+		_intendedTimes = wantCorrectedLatency ? new long[ringSize] : null;
+		_correctedLatency = wantCorrectedLatency ? new LatencyHistogram() : null;
+	}
+
+	/**
+	 * Takes one credit for a send, blocking while the window is full.
+	 *
+	 * @param timeoutMsec max time to wait for credit, 0 or less waits forever
+	 * @return false if no credit became available within the timeout
+	 */
+	public boolean acquire(long timeoutMsec) throws InterruptedException {
+		return acquire(timeoutMsec, 0);
+	}
+
+	/**
+	 * @param intendedNanos System.nanoTime() at which the send was scheduled,
+	 *            kept only if the window wants corrected latency
+	 */
+	public boolean acquire(long timeoutMsec, long intendedNanos) throws InterruptedException {
+		if (_credits != null && !_credits.tryAcquire()) {
+			_windowClosed.incrementAndGet();
+			if (timeoutMsec <= 0) {
+				_credits.acquire();
+			} else if (!_credits.tryAcquire(timeoutMsec, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+		}
+		_outstanding.incrementAndGet();
+		_sent.incrementAndGet();
+		long seq = _sendSeq;
+		_sendTimes[(int) (seq & _sendTimesMask)] = System.nanoTime();
+		if (_intendedTimes != null) {
+			_intendedTimes[(int) (seq & _sendTimesMask)] = intendedNanos;
+		}
+		_sendSeq = seq + 1;
+		return true;
+	}
+
+	/** The send call itself threw, so no completion callback will follow. */
+	public void sendRejected() {
+		_sendSeq = _sendSeq - 1;
+		_sent.decrementAndGet();
+		release();
+	}
+
+	/**
+	 * @return the publish-to-ack latency in nanoseconds, or -1 if the send
+	 *         time was already overwritten in the ring
+	 */
+	public long onAcked() {
+		long now = System.nanoTime();
+		long seq = _completionSeq;
+		long latencyNanos = completionLatency(now);
+		if (latencyNanos >= 0) {
+			_ackLatency.recordValue(latencyNanos);
+			if (_intendedTimes != null) {
+				_correctedLatency.recordValue(now - _intendedTimes[(int) (seq & _sendTimesMask)]);
+			}
+		}
+		_acked.incrementAndGet();
+		release();
+		return latencyNanos;
+	}
+
+	public void onFailed() {
+		completionLatency(System.nanoTime());
+		_failed.incrementAndGet();
+		release();
+	}
+
+	private long completionLatency(long now) {
+		long seq = _completionSeq++;
+		if (_sendSeq - seq > _sendTimes.length) {
+			// More sends outstanding than the ring holds, this timestamp is gone.
+			return -1;
+		}
+		return now - _sendTimes[(int) (seq & _sendTimesMask)];
+	}
+
+	private void release() {
+		_outstanding.decrementAndGet();
+		if (_credits != null) {
+			_credits.release();
+		}
+	}
+
+	/**
+	 * Waits for every outstanding send to be acknowledged or failed. A timeout
+	 * of 0 or less waits forever, as in acquire().
+	 *
+	 * @return false if sends were still outstanding when the timeout expired
+	 */
+	public boolean awaitEmpty(long timeoutMsec) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		while (_outstanding.get() > 0) {
+			if (timeoutMsec > 0 && System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/** Outstanding sends are left alone so the window stays consistent. */
+	public void resetStats() {
+		_sent.set(0);
+		_acked.set(0);
+		_failed.set(0);
+		_windowClosed.set(0);
+		_ackLatency.reset();
+		_lastIntervalSnapshot = null;
+		if (_correctedLatency != null) {
+			_correctedLatency.reset();
+			_lastCorrectedSnapshot = null;
+		}
+	}
+
+	public int getProducerIndex() {
+		return _producerIndex;
+	}
+
+	public int getWindowSize() {
+		return _windowSize;
+	}
+
+	public long getOutstanding() {
+		return _outstanding.get();
+	}
+
+	public long getSent() {
+		return _sent.get();
+	}
+
+	public long getAcked() {
+		return _acked.get();
+	}
+
+	public long getFailed() {
+		return _failed.get();
+	}
+
+	public long getWindowClosed() {
+		return _windowClosed.get();
+	}
+
+	/** Publish-to-ack latency since the start of the run (or the last stats reset). */
+	public LatencyHistogram.Snapshot getAckLatency() {
+		return _ackLatency.snapshot();
+	}
+
+	/**
+	 * Publish-to-ack latency since the previous call. Meant to be called from a
+	 * single reporting thread.
+	 */
+	public synchronized LatencyHistogram.Snapshot getIntervalAckLatency() {
+		LatencyHistogram.Snapshot current = _ackLatency.snapshot();
+		LatencyHistogram.Snapshot interval = (_lastIntervalSnapshot == null) ? current
+				: current.since(_lastIntervalSnapshot);
+		_lastIntervalSnapshot = current;
+		return interval;
+	}
+
+	public boolean hasCorrectedLatency() {
+		return _correctedLatency != null;
+	}
+
+	/** Latency from the intended send time to the ack, since the start of the run. */
+	public LatencyHistogram.Snapshot getCorrectedLatency() {
+		return _correctedLatency.snapshot();
+	}
+
+	/** Latency from the intended send time to the ack, since the previous call. */
+	public synchronized LatencyHistogram.Snapshot getIntervalCorrectedLatency() {
+		LatencyHistogram.Snapshot current = _correctedLatency.snapshot();
+		LatencyHistogram.Snapshot interval = (_lastCorrectedSnapshot == null) ? current
+				: current.since(_lastCorrectedSnapshot);
+		_lastCorrectedSnapshot = current;
+		return interval;
+	}
+
+	@Override
+	public String toString() {
+		return "producer " + _producerIndex + " (window " + (_windowSize > 0 ? String.valueOf(_windowSize) : "unbounded")
+				+ "): sent=" + getSent() + ", acked=" + getAcked() + ", failed=" + getFailed() + ", outstanding="
+				+ getOutstanding() + ", window closed=" + getWindowClosed();
+	}
+}
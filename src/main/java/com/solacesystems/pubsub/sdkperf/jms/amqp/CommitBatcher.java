@@ -0,0 +1,153 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a transacted publisher commits and keeps commit statistics.
+ * With a fixed batch every call to shouldCommit() commits, so the sdkperf
+ * transaction size (-txs) applies as before. In adaptive mode the batch
+ * grows by an eighth while commits finish within the target latency and
+ * shrinks in proportion when they do not, so it settles near the largest
+ * batch the broker commits within the target. An optional time window
+ * commits a partial batch once its first message is that old.
+ */
+public class CommitBatcher {
+
+	private final boolean _adaptive;
+	private final int _minBatch;
+	private final int _maxBatch;
+	private final long _targetLatencyNanos;
+	private final long _windowNanos;
+
+	private int _batchSize;
+	private long _batchStartNanos = -1;
+
+	private final LatencyHistogram _commitLatency = new LatencyHistogram();
+	private volatile long _commits = 0;
+	private volatile long _rollbacks = 0;
+	private volatile long _msgsCommitted = 0;
+
+	private LatencyHistogram.Snapshot _lastLatency = null;
+	private long _lastCommits = 0;
+	private long _lastMsgsCommitted = 0;
+	private long _lastReportNanos = System.nanoTime();
+
+	public CommitBatcher(boolean adaptive, int initialBatch, int minBatch, int maxBatch, long targetLatencyMsec,
+			long windowMsec) {
+		if (minBatch < 1 || maxBatch < minBatch) {
+			throw new IllegalArgumentException("Commit batch limits must satisfy 1 <= min <= max, got min=" + minBatch
+					+ ", max=" + maxBatch);
+		}
+		_adaptive = adaptive;
+		_minBatch = minBatch;
+		_maxBatch = maxBatch;
+		_targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMsec);
+		_windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMsec);
+		_batchSize = Math.max(minBatch, Math.min(maxBatch, initialBatch));
+	}
+
+	public boolean isAdaptive() {
+		return _adaptive;
+	}
+
+	/** Called by the publisher at each sdkperf transaction boundary. */
+	public boolean shouldCommit(long pendingMsgs, long nowNanos) {
+		if (!_adaptive) {
+			return true;
+		}
+		if (pendingMsgs <= 0) {
+			return false;
+		}
+		if (_batchStartNanos < 0) {
+			_batchStartNanos = nowNanos;
+		}
+		return pendingMsgs >= _batchSize || (_windowNanos > 0 && nowNanos - _batchStartNanos >= _windowNanos);
+	}
+
+	public void onCommitted(long msgs, long latencyNanos) {
+		_commitLatency.recordValue(latencyNanos);
+		_commits++;
+		_msgsCommitted += msgs;
+		_batchStartNanos = -1;
+		if (!_adaptive || _targetLatencyNanos <= 0) {
+			return;
+		}
+		if (latencyNanos <= _targetLatencyNanos) {
+			_batchSize = Math.min(_maxBatch, _batchSize + Math.max(1, _batchSize / 8));
+		} else {
+			_batchSize = (int) Math.max(_minBatch, (long) _batchSize * _targetLatencyNanos / latencyNanos);
+		}
+	}
+
+	public void onRolledBack() {
+		_rollbacks++;
+		_batchStartNanos = -1;
+	}
+
+	public int getBatchSize() {
+		return _batchSize;
+	}
+
+	public long getCommits() {
+		return _commits;
+	}
+
+	public long getMsgsCommitted() {
+		return _msgsCommitted;
+	}
+
+	public void resetStats() {
+		_commitLatency.reset();
+		_commits = 0;
+		_rollbacks = 0;
+		_msgsCommitted = 0;
+		synchronized (this) {
+			_lastLatency = null;
+			_lastCommits = 0;
+			_lastMsgsCommitted = 0;
+			_lastReportNanos = System.nanoTime();
+		}
+	}
+
+	/** Totals for the whole run. */
+	public String getTotalStats() {
+		long commits = _commits;
+		return "commits=" + commits + ", rollbacks=" + _rollbacks + ", msgs/commit="
+				+ ((commits == 0) ? 0 : _msgsCommitted / commits) + ", batch=" + _batchSize
+				+ ", commit latency (us): " + _commitLatency.snapshot().toSummaryString();
+	}
+
+	/** Rates and latency since the previous call. */
+	public synchronized String getIntervalStats() {
+		long now = System.nanoTime();
+		long commits = _commits;
+		long msgs = _msgsCommitted;
+		LatencyHistogram.Snapshot latency = _commitLatency.snapshot();
+		LatencyHistogram.Snapshot interval = (_lastLatency == null) ? latency : latency.since(_lastLatency);
+		long intervalCommits = commits - _lastCommits;
+		double seconds = (now - _lastReportNanos) / 1e9;
+		String stats = "commits/s=" + ((seconds > 0) ? Math.round(intervalCommits / seconds) : 0) + ", msgs/commit="
+				+ ((intervalCommits == 0) ? 0 : (msgs - _lastMsgsCommitted) / intervalCommits) + ", batch="
+				+ _batchSize + ", commit latency (us): " + interval.toSummaryString();
+		_lastLatency = latency;
+		_lastCommits = commits;
+		_lastMsgsCommitted = msgs;
+		_lastReportNanos = now;
+		return stats;
+	}
+}
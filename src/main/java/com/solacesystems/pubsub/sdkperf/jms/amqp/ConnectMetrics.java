@@ -0,0 +1,83 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Time spent in each step of client startup, across all clients in the JVM.
+ * Once every client of the run has finished connecting, one histogram line per
+ * step is logged so it is clear where startup time goes.
+ */
+public class ConnectMetrics {
+
+	private static final Log Trace = LogFactory.getLog(ConnectMetrics.class);
+
+	public enum Step {
+		JNDI_LOOKUP("jndi lookup"),
+		CREATE_CONNECTION("create connection"),
+		START_CONNECTION("start connection"),
+		CREATE_SESSION("create session"),
+		CREATE_PRODUCERS("create producers"),
+		CREATE_CONSUMERS("create consumers"),
+		TOTAL("total connect");
+
+		private final String _label;
+		private final LatencyHistogram _histogram = new LatencyHistogram();
+
+		Step(String label) {
+			_label = label;
+		}
+	}
+
+	private static final AtomicInteger _connectsDone = new AtomicInteger();
+	private static final AtomicInteger _connectsFailed = new AtomicInteger();
+
+	private ConnectMetrics() {
+	}
+
+	public static void record(Step step, long nanos) {
+		step._histogram.recordValue(nanos);
+	}
+
+	/**
+	 * Called once per client connect attempt. Logs the summary when the number
+	 * of attempts reaches a multiple of the number of clients in the run.
+	 */
+	public static void connectDone(boolean success, int numClients) {
+		if (!success) {
+			_connectsFailed.incrementAndGet();
+		}
+		int done = _connectsDone.incrementAndGet();
+		if (numClients > 0 && (done % numClients) == 0) {
+			logSummary();
+		}
+	}
+
+	public static void logSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Client connect times (us) after ").append(_connectsDone.get()).append(" connects, ")
+				.append(_connectsFailed.get()).append(" failed:");
+		for (Step step : Step.values()) {
+			sb.append(System.getProperty("line.separator")).append("    ").append(step._label).append(": ")
+					.append(step._histogram.snapshot().toSummaryString());
+		}
+		Trace.info(sb.toString());
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Producers bound to one destination each, for one producer index. A send on
+ * an anonymous producer (createProducer(null)) makes qpid use the broker's
+ * anonymous relay or, without one, attach and detach a sender link for every
+ * message. Here each destination keeps its own producer, and so its own
+ * sender link, until the cache is full and the least recently used one is
+ * closed.
+ */
+public class DestinationProducerCache {
+
+	private static final Log Trace = LogFactory.getLog(DestinationProducerCache.class);
+
+	private final Session _session;
+	private final int _capacity;
+	private final Map<Destination, MessageProducer> _producers;
+	private long _hits = 0;
+	private long _attaches = 0;
+	private long _evictions = 0;
+
+	public DestinationProducerCache(Session session, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Producer cache size must be at least 1, got " + capacity);
+		}
+		_session = session;
+		_capacity = capacity;
+		_producers = new LinkedHashMap<Destination, MessageProducer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Destination, MessageProducer> eldest) {
+				if (size() <= _capacity) {
+					return false;
+				}
+				_evictions++;
+				close(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * The producer bound to dest, created on the first send to it. Its send
+	 * settings are copied from the anonymous producer the client configured,
+	 * and the priority is kept in step since sdkperf sets it per message.
+	 */
+	public MessageProducer get(Destination dest, MessageProducer settings) throws JMSException {
+		MessageProducer producer = _producers.get(dest);
+		if (producer == null) {
+			producer = _session.createProducer(dest);
+			producer.setDeliveryMode(settings.getDeliveryMode());
+			producer.setPriority(settings.getPriority());
+			producer.setTimeToLive(settings.getTimeToLive());
+			producer.setDisableMessageID(settings.getDisableMessageID());
+			producer.setDisableMessageTimestamp(settings.getDisableMessageTimestamp());
+			_attaches++;
+			_producers.put(dest, producer);
+			return producer;
+		}
+		_hits++;
+		if (producer.getPriority() != settings.getPriority()) {
+			producer.setPriority(settings.getPriority());
+		}
+		return producer;
+	}
+
+	/** Closes every cached producer. */
+	public void close() {
+		for (MessageProducer producer : _producers.values()) {
+			close(producer);
+		}
+		_producers.clear();
+	}
+
+	private static void close(MessageProducer producer) {
+		try {
+			producer.close();
+		} catch (JMSException e) {
+			Trace.warn("Failed to close cached producer.", e);
+		}
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	public int getOpen() {
+		return _producers.size();
+	}
+
+	public long getHits() {
+		return _hits;
+	}
+
+	/** Producers created, each of which attached a sender link. */
+	public long getAttaches() {
+		return _attaches;
+	}
+
+	public long getEvictions() {
+		return _evictions;
+	}
+}
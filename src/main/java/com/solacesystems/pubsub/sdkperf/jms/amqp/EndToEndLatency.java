@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * End-to-end latency mode. Publishers put their send time in the
+ * SEND_TIME_PROPERTY application property, which AMQP carries unchanged, and
+ * receivers record the one-way latency on arrival. Times are nanoseconds on
+ * a clock made of System.nanoTime() anchored to the wall clock once per JVM,
+ * so publisher and receiver in one JVM measure exactly, and across JVMs or
+ * hosts the result is only as good as the clock sync between them.
+ * <p>
+ * Every receiver in the JVM also records into one shared histogram, which is
+ * logged once per second as a time series while messages arrive.
+ */
+public class EndToEndLatency {
+
+	private static final Log Trace = LogFactory.getLog(EndToEndLatency.class);
+
+	public static final String SEND_TIME_PROPERTY = "sdkperfSendNanos";
+
+	private static final long EPOCH_OFFSET_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis())
+			- System.nanoTime();
+
+	private static final LatencyHistogram _histogram = new LatencyHistogram();
+	private static final AtomicLong _clockSkewed = new AtomicLong();
+	private static ScheduledExecutorService _executor = null;
+	private static LatencyHistogram.Snapshot _lastSnapshot = null;
+	private static long _seriesSec = 0;
+
+	private EndToEndLatency() {
+	}
+
+	/** Current time on the clock shared by publishers and receivers. */
+	public static long now() {
+		return EPOCH_OFFSET_NANOS + System.nanoTime();
+	}
+
+	/**
+	 * Records the latency of one message into the shared histogram and
+	 * returns it. A send time in the future (clock skew between hosts) is
+	 * counted and recorded as 0.
+	 */
+	public static long record(long sendNanos, long receiveNanos) {
+		long latency = receiveNanos - sendNanos;
+		if (latency < 0) {
+			_clockSkewed.incrementAndGet();
+			latency = 0;
+		}
+		_histogram.recordValue(latency);
+		return latency;
+	}
+
+	/** Starts the per-second series, once per JVM. */
+	public static synchronized void startSeries() {
+		if (_executor != null) {
+			return;
+		}
+		_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sdkperf-amqp-latency");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logSecond();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	private static synchronized void logSecond() {
+		_seriesSec++;
+		LatencyHistogram.Snapshot snapshot = _histogram.snapshot();
+		LatencyHistogram.Snapshot second = (_lastSnapshot == null) ? snapshot : snapshot.since(_lastSnapshot);
+		_lastSnapshot = snapshot;
+		if (second.getTotalCount() > 0) {
+			long clockSkewed = _clockSkewed.get();
+			Trace.info("End-to-end latency (us) at " + _seriesSec + "s: " + second.toSummaryString()
+					+ ((clockSkewed > 0) ? ", clock skewed msgs=" + clockSkewed : ""));
+		}
+	}
+}
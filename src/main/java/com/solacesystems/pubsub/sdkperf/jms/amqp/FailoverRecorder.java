@@ -0,0 +1,360 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Measures what each failover costs one client. An event starts when qpid
+ * reports the connection interrupted and the outage ends when every
+ * interrupted connection of the client is restored. The event then stays open
+ * until the message rate is back to the rate before the interruption, and
+ * records the outage, the time to recover the rate, and how many async sends
+ * failed and messages were lost, duplicated or redelivered meanwhile.
+ * <p>
+ * The rate (messages published plus received per second) is sampled every
+ * 100 ms by one daemon thread shared by all clients in the JVM. The rate
+ * before the event is taken over the 5 s before the interruption and the
+ * rate after it over the last second, or over the time since restoration if
+ * that is shorter.
+ * <p>
+ * Lost and duplicated messages are found from a per-publisher sequence
+ * number the publishers stamp in each message, so they count the messages
+ * the consumers of this client received. A message that arrives after a
+ * later one from the same publisher is counted as a duplicate and the gap it
+ * left as lost.
+ */
+public class FailoverRecorder {
+
+	private static final Log Trace = LogFactory.getLog(FailoverRecorder.class);
+
+	/** String property with the id of the publisher that sent the message. */
+	public static final String PUBLISHER_PROPERTY = "sdkperfPubId";
+	/** Long property with the sequence number of the message from its publisher, starting at 1. */
+	public static final String SEQUENCE_PROPERTY = "sdkperfSeq";
+
+	private static final long SAMPLE_INTERVAL_MSEC = 100;
+	private static final int BASELINE_SAMPLES = 50;
+	private static final int RATE_SAMPLES = 10;
+
+	/** The counters of a client that an event is measured with. */
+	public interface Counters {
+		long getPublished();
+
+		long getReceived();
+
+		long getAsyncSendsFailed();
+
+		long getLost();
+
+		long getDuplicates();
+
+		long getRedelivered();
+	}
+
+	private static final Set<FailoverRecorder> _recorders = new CopyOnWriteArraySet<FailoverRecorder>();
+	private static ScheduledExecutorService _executor = null;
+
+	private final String _clientIdStr;
+	private final Counters _counters;
+	private final double _recoveryFraction;
+
+	// Ring of the last BASELINE_SAMPLES + 1 (time, messages) samples.
+	private final long[] _sampleNanos = new long[BASELINE_SAMPLES + 1];
+	private final long[] _sampleCounts = new long[BASELINE_SAMPLES + 1];
+	private int _sampleHead = -1;
+	private int _sampleCount = 0;
+	// Counters at the last sample. qpid fails the in-flight sends before it
+	// reports the interruption, so an event counts from the sample before it.
+	private long[] _sampledCounters = new long[4];
+
+	private int _interruptedConnections = 0;
+	private Event _current = null;
+	private final List<Event> _events = new ArrayList<Event>();
+	private final LatencyHistogram _outages = new LatencyHistogram();
+	private final LatencyHistogram _recoveries = new LatencyHistogram();
+
+	/**
+	 * @param recoveryPercent percentage of the rate before the event the rate
+	 *            must reach again for the client to count as recovered
+	 */
+	public FailoverRecorder(String clientIdStr, Counters counters, int recoveryPercent) {
+		if (recoveryPercent <= 0 || recoveryPercent > 100) {
+			throw new IllegalArgumentException("Failover recovery percentage must be between 1 and 100, not "
+					+ recoveryPercent);
+		}
+		_clientIdStr = clientIdStr;
+		_counters = counters;
+		_recoveryFraction = recoveryPercent / 100.0;
+	}
+
+	/** Starts sampling the rate of the client. */
+	public void start() {
+		synchronized (FailoverRecorder.class) {
+			_recorders.add(this);
+			if (_executor == null) {
+				_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "sdkperf-amqp-failover");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				_executor.scheduleAtFixedRate(new Runnable() {
+					public void run() {
+						for (FailoverRecorder recorder : _recorders) {
+							try {
+								recorder.sample(System.nanoTime());
+							} catch (Exception e) {
+								Trace.warn("Failed to sample the failover rate.", e);
+							}
+						}
+					}
+				}, SAMPLE_INTERVAL_MSEC, SAMPLE_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/** Stops sampling, ends the open event and logs the totals. */
+	public synchronized void stop() {
+		if (!_recorders.remove(this)) {
+			return;
+		}
+		if (_current != null) {
+			endEvent(System.nanoTime(), false);
+		}
+		if (!_events.isEmpty()) {
+			Trace.info("CLIENT " + _clientIdStr + ": failover total: " + getTotalStats());
+		}
+	}
+
+	public synchronized void onInterrupted(URI remoteURI) {
+		long now = System.nanoTime();
+		if (_interruptedConnections++ > 0) {
+			// Another connection of the same client lost in the same outage.
+			return;
+		}
+		if (_current != null) {
+			endEvent(now, false);
+		}
+		long[] startCounters = _sampledCounters;
+		sample(now);
+		_current = new Event(_events.size() + 1, remoteURI, now, rate(BASELINE_SAMPLES, 0), startCounters);
+	}
+
+	public synchronized void onRestored(URI remoteURI) {
+		if (_interruptedConnections == 0 || --_interruptedConnections > 0 || _current == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		_current._remoteURI = remoteURI;
+		_current._restoredNanos = now;
+		_outages.recordValue(_current.getOutageNanos());
+		Trace.info("CLIENT " + _clientIdStr + ": failover " + _current._index + " outage "
+				+ TimeUnit.NANOSECONDS.toMillis(_current.getOutageNanos()) + " ms, waiting for the rate to recover to "
+				+ Math.round(_current._baselineRate * _recoveryFraction) + " msgs/s.");
+		sample(now);
+		if (_current._baselineRate <= 0) {
+			endEvent(now, true);
+		}
+	}
+
+	/** Takes a rate sample and ends the open event if the rate has recovered. */
+	synchronized void sample(long now) {
+		_sampleHead = (_sampleHead + 1) % _sampleNanos.length;
+		_sampleNanos[_sampleHead] = now;
+		_sampleCounts[_sampleHead] = _counters.getPublished() + _counters.getReceived();
+		if (_sampleCount < _sampleNanos.length) {
+			_sampleCount++;
+		}
+		_sampledCounters = readCounters();
+		if (_current != null && _current._restoredNanos != 0 && now > _current._restoredNanos
+				&& rate(RATE_SAMPLES, _current._restoredNanos) >= _current._baselineRate * _recoveryFraction) {
+			endEvent(now, true);
+		}
+	}
+
+	/**
+	 * Rate over at most the last maxSamples sample intervals, using only
+	 * samples taken at or after notBeforeNanos. 0 if there are not two such
+	 * samples.
+	 */
+	private double rate(int maxSamples, long notBeforeNanos) {
+		if (_sampleCount < 2) {
+			return 0;
+		}
+		int oldest = _sampleHead;
+		for (int i = 1; i <= Math.min(maxSamples, _sampleCount - 1); i++) {
+			int index = (_sampleHead - i + _sampleNanos.length) % _sampleNanos.length;
+			if (_sampleNanos[index] < notBeforeNanos) {
+				break;
+			}
+			oldest = index;
+		}
+		long nanos = _sampleNanos[_sampleHead] - _sampleNanos[oldest];
+		if (nanos <= 0) {
+			return 0;
+		}
+		return Math.max(0, _sampleCounts[_sampleHead] - _sampleCounts[oldest]) * 1e9 / nanos;
+	}
+
+	private long[] readCounters() {
+		return new long[] { _counters.getAsyncSendsFailed(), _counters.getLost(), _counters.getDuplicates(),
+				_counters.getRedelivered() };
+	}
+
+	private void endEvent(long now, boolean recovered) {
+		Event event = _current;
+		_current = null;
+		long[] counters = readCounters();
+		event._failedSends = counters[0] - event._startCounters[0];
+		event._lost = counters[1] - event._startCounters[1];
+		event._duplicates = counters[2] - event._startCounters[2];
+		event._redelivered = counters[3] - event._startCounters[3];
+		if (recovered) {
+			event._recoveryNanos = now - event._restoredNanos;
+			_recoveries.recordValue(event._recoveryNanos);
+		}
+		_events.add(event);
+		Trace.info("CLIENT " + _clientIdStr + ": " + event);
+	}
+
+	/** Events ended so far, oldest first. */
+	public synchronized List<Event> getEvents() {
+		return new ArrayList<Event>(_events);
+	}
+
+	public synchronized String getTotalStats() {
+		int recovered = 0;
+		long failedSends = 0;
+		long lost = 0;
+		long duplicates = 0;
+		long redelivered = 0;
+		for (Event event : _events) {
+			if (event.isRecovered()) {
+				recovered++;
+			}
+			failedSends += event._failedSends;
+			lost += event._lost;
+			duplicates += event._duplicates;
+			redelivered += event._redelivered;
+		}
+		return "events=" + _events.size() + ", recovered=" + recovered + ", outage (us): "
+				+ _outages.snapshot().toSummaryString() + ", rate recovery (us): "
+				+ _recoveries.snapshot().toSummaryString() + ", async sends failed=" + failedSends + ", lost=" + lost
+				+ ", duplicates=" + duplicates + ", redelivered=" + redelivered;
+	}
+
+	/** One interruption of the client's connection, from interruption to rate recovery. */
+	public static class Event {
+
+		private final int _index;
+		private URI _remoteURI;
+		private final long _interruptedNanos;
+		private final double _baselineRate;
+		private final long[] _startCounters;
+		private long _restoredNanos = 0;
+		private long _recoveryNanos = -1;
+		private long _failedSends = 0;
+		private long _lost = 0;
+		private long _duplicates = 0;
+		private long _redelivered = 0;
+
+		Event(int index, URI remoteURI, long interruptedNanos, double baselineRate, long[] startCounters) {
+			_index = index;
+			_remoteURI = remoteURI;
+			_interruptedNanos = interruptedNanos;
+			_baselineRate = baselineRate;
+			_startCounters = startCounters;
+		}
+
+		/** The broker the connection was restored to, or the one it lost if never restored. */
+		public URI getRemoteURI() {
+			return _remoteURI;
+		}
+
+		public boolean isRestored() {
+			return _restoredNanos != 0;
+		}
+
+		/** Time from interruption to restoration, -1 if the connection was never restored. */
+		public long getOutageNanos() {
+			return isRestored() ? _restoredNanos - _interruptedNanos : -1;
+		}
+
+		public boolean isRecovered() {
+			return _recoveryNanos >= 0;
+		}
+
+		/** Time from restoration until the rate recovered, -1 if it did not. */
+		public long getRecoveryNanos() {
+			return _recoveryNanos;
+		}
+
+		/** Messages per second published and received before the interruption. */
+		public double getBaselineRate() {
+			return _baselineRate;
+		}
+
+		public long getFailedSends() {
+			return _failedSends;
+		}
+
+		public long getLost() {
+			return _lost;
+		}
+
+		public long getDuplicates() {
+			return _duplicates;
+		}
+
+		public long getRedelivered() {
+			return _redelivered;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("failover ").append(_index).append(" to ").append(_remoteURI).append(": outage=");
+			if (isRestored()) {
+				sb.append(TimeUnit.NANOSECONDS.toMillis(getOutageNanos())).append(" ms");
+			} else {
+				sb.append("not restored");
+			}
+			sb.append(", rate recovery=");
+			if (isRecovered()) {
+				sb.append(TimeUnit.NANOSECONDS.toMillis(_recoveryNanos)).append(" ms");
+			} else {
+				sb.append("not recovered");
+			}
+			sb.append(" (rate before ").append(Math.round(_baselineRate)).append(" msgs/s), async sends failed=")
+					.append(_failedSends).append(", lost=").append(_lost).append(", duplicates=").append(_duplicates)
+					.append(", redelivered=").append(_redelivered);
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-rate send schedule for one producer. The intended send time of
+ * message n is start + n * interval, whatever happened to earlier sends, so
+ * a publisher that falls behind sends at once until it catches up and the
+ * schedule never slides. Latency measured from the intended time includes the
+ * time a message waited because the publisher was stalled, which is what the
+ * send-to-ack latency alone hides (coordinated omission).
+ * <p>
+ * Used by the publishing thread only.
+ */
+public class FixedRateSchedule {
+
+	/** Waits shorter than this are spun rather than parked, parking is not that precise. */
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final long _intervalNanos;
+	private long _startNanos = 0;
+	private long _count = 0;
+
+	private volatile long _lateSends = 0;
+	private volatile long _maxLagNanos = 0;
+
+	public FixedRateSchedule(double msgsPerSec) {
+		if (msgsPerSec <= 0) {
+			throw new IllegalArgumentException("Fixed-rate schedule needs a rate above 0, got " + msgsPerSec);
+		}
+		_intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / msgsPerSec));
+	}
+
+	/**
+	 * Waits until the intended time of the next send, or returns at once if
+	 * it has already passed.
+	 *
+	 * @return the intended send time, in System.nanoTime() terms
+	 */
+	public long awaitNext() {
+		long now = System.nanoTime();
+		if (_count == 0) {
+			_startNanos = now;
+		}
+		long intendedNanos = _startNanos + _count++ * _intervalNanos;
+		long wait = intendedNanos - now;
+		if (wait < 0) {
+			// Behind schedule by more than one interval counts as late.
+			if (-wait > _intervalNanos) {
+				_lateSends++;
+			}
+			if (-wait > _maxLagNanos) {
+				_maxLagNanos = -wait;
+			}
+			return intendedNanos;
+		}
+		while (wait > 0) {
+			if (wait > SPIN_NANOS) {
+				LockSupport.parkNanos(wait - SPIN_NANOS);
+			}
+			wait = intendedNanos - System.nanoTime();
+		}
+		return intendedNanos;
+	}
+
+	public long getIntervalNanos() {
+		return _intervalNanos;
+	}
+
+	/** Sends that started more than one interval after their intended time. */
+	public long getLateSends() {
+		return _lateSends;
+	}
+
+	public long getMaxLagNanos() {
+		return _maxLagNanos;
+	}
+
+	/** Counts only, the schedule itself keeps running. */
+	public void resetStats() {
+		_lateSends = 0;
+		_maxLagNanos = 0;
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits the client's flight recorder hooks as JDK Flight Recorder events, so
+ * sends, acks and deliveries show up in JMC next to GC pauses and thread
+ * states. Publishes, acks and dispatches are sampled: only one in
+ * sampleInterval of them becomes an event, and none do while no recording
+ * has the event enabled. Failed sends, connects and window stalls longer than
+ * STALL_THRESHOLD_NANOS are rare and always recorded. Totals come from the
+ * periodic sdkperf.amqp.ClientStats event instead of per-message events.
+ * <p>
+ * The sample counters are plain ints. Acks and dispatches of one client can
+ * run on more than one qpid thread, and a lost update there only shifts which
+ * message gets sampled.
+ */
+public class JfrFlightRecorder extends AmqpFlightRecorder {
+
+	static final long STALL_THRESHOLD_NANOS = 1000000;
+
+	private static final EventType PUBLISH_TYPE = EventType.getEventType(PublishEvent.class);
+	private static final EventType STALL_TYPE = EventType.getEventType(WindowStallEvent.class);
+	private static final EventType ACK_TYPE = EventType.getEventType(AckEvent.class);
+	private static final EventType DISPATCH_TYPE = EventType.getEventType(DispatchEvent.class);
+
+	private final AmqpClientMetrics _metrics;
+	private final String _clientIdStr;
+	private final int _sampleInterval;
+	private final Runnable _statsHook;
+	private int _publishCount = 0;
+	private int _ackCount = 0;
+	private int _dispatchCount = 0;
+
+	public JfrFlightRecorder(AmqpJmsClient client, String clientIdStr, int sampleInterval) {
+		_metrics = new AmqpClientMetrics(client);
+		_clientIdStr = clientIdStr;
+		_sampleInterval = sampleInterval;
+		_statsHook = new Runnable() {
+			public void run() {
+				emitClientStats();
+			}
+		};
+		FlightRecorder.addPeriodicEvent(ClientStatsEvent.class, _statsHook);
+	}
+
+	@Override
+	public Object publishStart() {
+		if (!PUBLISH_TYPE.isEnabled() || ++_publishCount < _sampleInterval) {
+			return null;
+		}
+		_publishCount = 0;
+		PublishEvent event = new PublishEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void publishEnd(Object token, int producerIndex, long outstanding) {
+		PublishEvent event = (PublishEvent) token;
+		event.end();
+		event.client = _clientIdStr;
+		event.producer = producerIndex;
+		event.outstanding = outstanding;
+		event.commit();
+	}
+
+	@Override
+	public boolean wantWindowStalls() {
+		return STALL_TYPE.isEnabled();
+	}
+
+	@Override
+	public void windowStalled(long waitNanos, int producerIndex, int windowSize) {
+		if (waitNanos < STALL_THRESHOLD_NANOS) {
+			return;
+		}
+		WindowStallEvent event = new WindowStallEvent();
+		event.client = _clientIdStr;
+		event.producer = producerIndex;
+		event.windowSize = windowSize;
+		event.wait = waitNanos;
+		event.commit();
+	}
+
+	@Override
+	public boolean sampleAck() {
+		if (!ACK_TYPE.isEnabled() || ++_ackCount < _sampleInterval) {
+			return false;
+		}
+		_ackCount = 0;
+		return true;
+	}
+
+	@Override
+	public void acked(int producerIndex, long latencyNanos) {
+		AckEvent event = new AckEvent();
+		event.client = _clientIdStr;
+		event.producer = producerIndex;
+		event.latency = latencyNanos;
+		event.commit();
+	}
+
+	@Override
+	public void sendFailed(int producerIndex, Exception e) {
+		SendFailedEvent event = new SendFailedEvent();
+		if (event.isEnabled()) {
+			event.client = _clientIdStr;
+			event.producer = producerIndex;
+			event.error = String.valueOf(e);
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object connectStart() {
+		ConnectEvent event = new ConnectEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void connectEnd(Object token, boolean success) {
+		ConnectEvent event = (ConnectEvent) token;
+		event.end();
+		event.client = _clientIdStr;
+		event.success = success;
+		event.commit();
+	}
+
+	@Override
+	public Object dispatchStart() {
+		if (!DISPATCH_TYPE.isEnabled() || ++_dispatchCount < _sampleInterval) {
+			return null;
+		}
+		_dispatchCount = 0;
+		DispatchEvent event = new DispatchEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void dispatchEnd(Object token, String destination) {
+		DispatchEvent event = (DispatchEvent) token;
+		event.end();
+		event.client = _clientIdStr;
+		event.destination = destination;
+		event.commit();
+	}
+
+	@Override
+	public void close() {
+		FlightRecorder.removePeriodicEvent(_statsHook);
+	}
+
+	private void emitClientStats() {
+		ClientStatsEvent event = new ClientStatsEvent();
+		event.client = _clientIdStr;
+		event.published = _metrics.getPublished();
+		event.acked = _metrics.getAsyncAcked();
+		event.failed = _metrics.getAsyncFailed();
+		event.outstanding = _metrics.getAsyncOutstanding();
+		event.received = _metrics.getReceived();
+		event.commit();
+	}
+
+	@Name("sdkperf.amqp.Publish")
+	@Label("AMQP Publish")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("A sampled send, including any wait for publish window credit")
+	@StackTrace(false)
+	static class PublishEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Producer")
+		int producer;
+		@Label("Outstanding")
+		@Description("Async sends not yet acked after this one")
+		long outstanding;
+	}
+
+	@Name("sdkperf.amqp.WindowStall")
+	@Label("AMQP Publish Window Stall")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("A send that waited for publish window credit")
+	@StackTrace(false)
+	static class WindowStallEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Producer")
+		int producer;
+		@Label("Window Size")
+		int windowSize;
+		@Label("Wait")
+		@Timespan(Timespan.NANOSECONDS)
+		long wait;
+	}
+
+	@Name("sdkperf.amqp.Ack")
+	@Label("AMQP Ack")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("A sampled completion of an async send")
+	@StackTrace(false)
+	static class AckEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Producer")
+		int producer;
+		@Label("Ack Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+	}
+
+	@Name("sdkperf.amqp.SendFailed")
+	@Label("AMQP Send Failed")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("An async send completed with an exception")
+	@StackTrace(false)
+	static class SendFailedEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Producer")
+		int producer;
+		@Label("Error")
+		String error;
+	}
+
+	@Name("sdkperf.amqp.Connect")
+	@Label("AMQP Connect")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("Connect of a client: its connection, sessions, producers and consumers")
+	@StackTrace(false)
+	static class ConnectEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Success")
+		boolean success;
+	}
+
+	@Name("sdkperf.amqp.Dispatch")
+	@Label("AMQP Dispatch")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("A sampled delivery to a message listener")
+	@StackTrace(false)
+	static class DispatchEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Destination")
+		String destination;
+	}
+
+	@Name("sdkperf.amqp.ClientStats")
+	@Label("AMQP Client Stats")
+	@Category({ "sdkperf", "AMQP" })
+	@Description("Message counts of a client since the start of the run")
+	@Period("1 s")
+	@StackTrace(false)
+	static class ClientStatsEvent extends Event {
+		@Label("Client")
+		String client;
+		@Label("Published")
+		long published;
+		@Label("Acked")
+		long acked;
+		@Label("Failed")
+		long failed;
+		@Label("Outstanding")
+		long outstanding;
+		@Label("Received")
+		long received;
+	}
+}
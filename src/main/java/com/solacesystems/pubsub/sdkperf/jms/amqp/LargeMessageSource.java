@@ -0,0 +1,193 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Payload of one client in large message mode. The payload lives off the
+ * heap, in a memory-mapped file or a direct buffer, and is copied into each
+ * outgoing BytesMessage through a small reusable chunk array, so the client
+ * never holds it as a heap array of its own. qpid still keeps the body and the
+ * encoded message on the heap until the message is written to the socket.
+ * <p>
+ * Every publish thread of the client copies through its own chunk array (see
+ * newChunk()) and its own view of the payload, so they can build messages at
+ * once. Also counts the bytes sent and samples JVM heap use after every
+ * message to keep a high-water mark; the heap is shared by every client in
+ * the JVM, so the mark is JVM wide.
+ */
+public class LargeMessageSource {
+
+	private static final MemoryMXBean MemoryBean = ManagementFactory.getMemoryMXBean();
+	private static final double MB = 1024 * 1024;
+
+	private final String _description;
+	private final ByteBuffer _payload;
+	private final int _chunkSize;
+
+	private final AtomicLong _messages = new AtomicLong();
+	private final AtomicLong _bytes = new AtomicLong();
+	private volatile long _startNanos = 0;
+	private volatile long _lastSendNanos = 0;
+	private volatile long _heapHighWater = 0;
+	private long _lastReportNanos = 0;
+	private long _lastReportBytes = 0;
+
+	private LargeMessageSource(String description, ByteBuffer payload, int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Large message chunk size must be at least 1, got " + chunkSize);
+		}
+		_description = description;
+		_payload = payload;
+		_chunkSize = Math.min(chunkSize, Math.max(payload.capacity(), 1));
+	}
+
+	/** Maps the whole file read-only; its content is the payload of every message. */
+	public static LargeMessageSource mapFile(String path, int chunkSize) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Large message file " + path + " is over 2 GB: " + size + " bytes");
+			}
+			// The mapping stays valid after the channel is closed.
+			return new LargeMessageSource("file " + path, channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+					chunkSize);
+		} finally {
+			file.close();
+		}
+	}
+
+	/** A direct buffer of the given size, filled with a repeating byte pattern. */
+	public static LargeMessageSource allocate(int size, int chunkSize) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Large message size must be at least 1, got " + size);
+		}
+		ByteBuffer payload = ByteBuffer.allocateDirect(size);
+		for (int i = 0; i < size; i++) {
+			payload.put((byte) i);
+		}
+		return new LargeMessageSource("direct buffer", payload, chunkSize);
+	}
+
+	/** A chunk array for one publish thread to pass to writeTo(). */
+	public byte[] newChunk() {
+		return new byte[_chunkSize];
+	}
+
+	/**
+	 * Appends the payload to the body of the message, one chunk at a time,
+	 * through a view of the payload of its own.
+	 *
+	 * @param chunk from newChunk(), used by the calling thread only
+	 */
+	public void writeTo(BytesMessage message, byte[] chunk) throws JMSException {
+		if (_startNanos == 0) {
+			_startNanos = System.nanoTime();
+		}
+		ByteBuffer payload = _payload.duplicate();
+		payload.clear();
+		while (payload.hasRemaining()) {
+			int length = Math.min(chunk.length, payload.remaining());
+			payload.get(chunk, 0, length);
+			message.writeBytes(chunk, 0, length);
+		}
+		sampleHeap();
+	}
+
+	/** Called once the message has been sent. */
+	public void onSent() {
+		_lastSendNanos = System.nanoTime();
+		_bytes.addAndGet(_payload.capacity());
+		_messages.incrementAndGet();
+		sampleHeap();
+	}
+
+	/** Racing samples may lose a higher reading now and then, close enough for a high-water mark. */
+	private void sampleHeap() {
+		long used = MemoryBean.getHeapMemoryUsage().getUsed();
+		if (used > _heapHighWater) {
+			_heapHighWater = used;
+		}
+	}
+
+	public synchronized void resetStats() {
+		_messages.set(0);
+		_bytes.set(0);
+		_startNanos = 0;
+		_heapHighWater = 0;
+		_lastReportNanos = 0;
+		_lastReportBytes = 0;
+	}
+
+	public int getSize() {
+		return _payload.capacity();
+	}
+
+	public long getMessages() {
+		return _messages.get();
+	}
+
+	public long getBytes() {
+		return _bytes.get();
+	}
+
+	/** Highest JVM heap use sampled while building and sending messages, not just this client's. */
+	public long getHeapHighWater() {
+		return _heapHighWater;
+	}
+
+	/** From the start of the first message to the end of the last send. */
+	public double getMBytesPerSec() {
+		long nanos = _lastSendNanos - _startNanos;
+		long messages = _messages.get();
+		return (messages == 0 || nanos <= 0) ? 0 : _bytes.get() / MB / (nanos / 1e9);
+	}
+
+	public String getDescription() {
+		return _description;
+	}
+
+	public String getTotalStats() {
+		return "large messages total: " + _messages.get() + " x " + _payload.capacity() + " bytes from "
+				+ _description + ", " + String.format("%.1f", getMBytesPerSec()) + " MB/s, JVM heap high-water "
+				+ Math.round(_heapHighWater / MB) + " MB";
+	}
+
+	/** Meant to be called from a single reporting thread. */
+	public synchronized String getIntervalStats() {
+		long now = System.nanoTime();
+		long bytes = _bytes.get();
+		long since = (_lastReportNanos == 0) ? _startNanos : _lastReportNanos;
+		double mbPerSec = (since == 0 || now <= since) ? 0 : (bytes - _lastReportBytes) / MB / ((now - since) / 1e9);
+		_lastReportNanos = now;
+		_lastReportBytes = bytes;
+		return "large messages interval: " + String.format("%.1f", mbPerSec) + " MB/s, JVM heap high-water "
+				+ Math.round(_heapHighWater / MB) + " MB";
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory, lock-free latency histogram using the HdrHistogram bucket
+ * layout: 64 linear sub-buckets per power of two, which keeps every recorded
+ * value within about 1.5% of its true value. Recording is a single atomic
+ * increment, so any number of threads can record while another one takes
+ * snapshots. Values are in nanoseconds and values above one hour are counted
+ * as one hour; the exact max is kept separately.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+	private static final long SUB_BUCKET_MASK = (1L << SUB_BUCKET_BITS) - 1;
+	private static final long HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos(1);
+	private static final int COUNTS_LENGTH = countsIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(COUNTS_LENGTH);
+	private final AtomicLong _max = new AtomicLong();
+
+	public void recordValue(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		_counts.incrementAndGet(countsIndex(Math.min(value, HIGHEST_TRACKABLE_VALUE)));
+		long max = _max.get();
+		while (value > max && !_max.compareAndSet(max, value)) {
+			max = _max.get();
+		}
+	}
+
+	/** Not atomic with respect to concurrent recording, values may be lost. */
+	public void reset() {
+		for (int i = 0; i < COUNTS_LENGTH; i++) {
+			_counts.set(i, 0);
+		}
+		_max.set(0);
+	}
+
+	public Snapshot snapshot() {
+		long[] counts = new long[COUNTS_LENGTH];
+		for (int i = 0; i < COUNTS_LENGTH; i++) {
+			counts[i] = _counts.get(i);
+		}
+		return new Snapshot(counts, _max.get());
+	}
+
+	private static int countsIndex(long value) {
+		int pow2Ceiling = 64 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+		int bucketIndex = pow2Ceiling - SUB_BUCKET_BITS;
+		int subBucketIndex = (int) (value >>> bucketIndex);
+		return (bucketIndex << SUB_BUCKET_HALF_BITS) + subBucketIndex;
+	}
+
+	/** Highest value that maps to the given counts index. */
+	private static long valueFromIndex(int index) {
+		int bucketIndex = (index >> SUB_BUCKET_HALF_BITS) - 1;
+		long subBucketIndex = (index & ((1 << SUB_BUCKET_HALF_BITS) - 1)) + (1 << SUB_BUCKET_HALF_BITS);
+		if (bucketIndex < 0) {
+			subBucketIndex -= (1 << SUB_BUCKET_HALF_BITS);
+			bucketIndex = 0;
+		}
+		return ((subBucketIndex + 1) << bucketIndex) - 1;
+	}
+
+	/**
+	 * Point-in-time copy of the counts. Snapshots are only taken off the hot
+	 * path, by reporters.
+	 */
+	public static class Snapshot {
+
+		private final long[] _snapCounts;
+		private final long _snapMax;
+		private final long _totalCount;
+
+		Snapshot(long[] counts, long max) {
+			_snapCounts = counts;
+			_snapMax = max;
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			_totalCount = total;
+		}
+
+		/**
+		 * Counts recorded since an earlier snapshot of the same histogram. The
+		 * max of the interval is the upper bound of its highest bucket.
+		 */
+		public Snapshot since(Snapshot earlier) {
+			long[] counts = new long[_snapCounts.length];
+			long max = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = _snapCounts[i] - earlier._snapCounts[i];
+				if (counts[i] > 0) {
+					max = Math.min(valueFromIndex(i), _snapMax);
+				}
+			}
+			return new Snapshot(counts, max);
+		}
+
+		/** Counts of this snapshot and another one together, for example of two producers. */
+		public Snapshot add(Snapshot other) {
+			long[] counts = new long[_snapCounts.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = _snapCounts[i] + other._snapCounts[i];
+			}
+			return new Snapshot(counts, Math.max(_snapMax, other._snapMax));
+		}
+
+		public long getTotalCount() {
+			return _totalCount;
+		}
+
+		public long getMax() {
+			return _snapMax;
+		}
+
+		/**
+		 * Sum of the recorded values, taking each value as the middle of its
+		 * bucket, so it is within the histogram's precision without adding work
+		 * to recordValue().
+		 */
+		public double getSum() {
+			double sum = 0;
+			long lowest = 0;
+			for (int i = 0; i < _snapCounts.length; i++) {
+				long highest = valueFromIndex(i);
+				if (_snapCounts[i] > 0) {
+					sum += _snapCounts[i] * ((lowest + Math.min(highest, _snapMax)) / 2.0);
+				}
+				lowest = highest + 1;
+			}
+			return sum;
+		}
+
+		public long getValueAtPercentile(double percentile) {
+			if (_totalCount == 0) {
+				return 0;
+			}
+			long countAtPercentile = Math.max(1, (long) Math.ceil((percentile / 100.0) * _totalCount));
+			long running = 0;
+			for (int i = 0; i < _snapCounts.length; i++) {
+				running += _snapCounts[i];
+				if (running >= countAtPercentile) {
+					return Math.min(valueFromIndex(i), _snapMax);
+				}
+			}
+			return _snapMax;
+		}
+
+		/** One line summary in microseconds: count, p50, p99, p99.9 and max. */
+		public String toSummaryString() {
+			return "n=" + _totalCount + ", p50=" + toMicros(getValueAtPercentile(50.0)) + ", p99="
+					+ toMicros(getValueAtPercentile(99.0)) + ", p99.9=" + toMicros(getValueAtPercentile(99.9))
+					+ ", max=" + toMicros(_snapMax);
+		}
+
+		private static long toMicros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos);
+		}
+	}
+}
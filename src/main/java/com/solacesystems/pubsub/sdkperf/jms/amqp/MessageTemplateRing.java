@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import javax.jms.BytesMessage;
+
+/**
+ * Reusable messages for one producer. Each slot holds a message built for a
+ * given payload array; sends walk the slots in order, so a slot is only reused
+ * after all the sends behind it. The ring should be larger than the number of
+ * sends a producer can have in flight: qpid keeps a message read-only until
+ * its send settles, and the client rebuilds a slot whose message is still
+ * read-only instead of reusing it.
+ */
+public class MessageTemplateRing {
+
+	private final BytesMessage[] _messages;
+	private final byte[][] _payloads;
+	private int _next = 0;
+	private long _reused = 0;
+	private long _built = 0;
+
+	public MessageTemplateRing(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Message template ring size must be at least 1, got " + size);
+		}
+		_messages = new BytesMessage[size];
+		_payloads = new byte[size][];
+	}
+
+	/**
+	 * Moves to the next slot and returns its message if it was built for this
+	 * payload, or null if the caller has to build one with {@link #replace}.
+	 */
+	public BytesMessage next(byte[] payload) {
+		if (++_next == _messages.length) {
+			_next = 0;
+		}
+		if (_payloads[_next] == payload && _messages[_next] != null) {
+			_reused++;
+			return _messages[_next];
+		}
+		return null;
+	}
+
+	/** Puts a newly built message into the current slot. */
+	public void replace(BytesMessage message, byte[] payload) {
+		_messages[_next] = message;
+		_payloads[_next] = payload;
+		_built++;
+	}
+
+	/** Undoes the reuse count of the last next() when its message could not be used after all. */
+	public void reuseFailed() {
+		_reused--;
+	}
+
+	public int getSize() {
+		return _messages.length;
+	}
+
+	public long getReused() {
+		return _reused;
+	}
+
+	public long getBuilt() {
+		return _built;
+	}
+}
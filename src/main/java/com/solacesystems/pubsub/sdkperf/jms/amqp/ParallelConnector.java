@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs client connects on a shared pool of threads so many clients connect at
+ * once. The pool size sets how many connects are in progress at the same time,
+ * and an optional ramp rate spaces out the start of each connect.
+ */
+public class ParallelConnector {
+
+	private static final Log Trace = LogFactory.getLog(ParallelConnector.class);
+
+	private static ExecutorService _executor = null;
+	private static long _rampIntervalNanos = 0;
+	private static long _nextStartNanos = 0;
+
+	private ParallelConnector() {
+	}
+
+	/**
+	 * @param concurrency max number of connects in progress at once, fixed by
+	 *            the first caller
+	 * @param rampPerSec max number of connects started per second, 0 for no
+	 *            limit, fixed by the first caller
+	 */
+	public static synchronized <T> Future<T> submit(final Callable<T> connect, int concurrency, int rampPerSec) {
+		if (_executor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			_executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "sdkperf-amqp-connect-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			_rampIntervalNanos = (rampPerSec > 0) ? TimeUnit.SECONDS.toNanos(1) / rampPerSec : 0;
+			Trace.info("Connecting clients in parallel: " + concurrency + " at a time"
+					+ ((rampPerSec > 0) ? ", at most " + rampPerSec + " per second." : "."));
+		}
+
+		final long startNanos = nextStartNanos();
+		return _executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				long delay = startNanos - System.nanoTime();
+				if (delay > 0) {
+					TimeUnit.NANOSECONDS.sleep(delay);
+				}
+				return connect.call();
+			}
+		});
+	}
+
+	private static long nextStartNanos() {
+		long now = System.nanoTime();
+		if (_rampIntervalNanos == 0) {
+			return now;
+		}
+		_nextStartNanos = Math.max(now, _nextStartNanos + _rampIntervalNanos);
+		return _nextStartNanos;
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Compresses BytesMessage payloads on send and restores them on receive.
+ * A compressed message carries the codec name and the original size as
+ * application properties; its body is the compressed payload. Deflaters,
+ * inflaters and their buffers are pooled, so the publishing thread and any
+ * number of consumer threads can use one instance without allocating per
+ * message once the buffers have grown to the payload size.
+ * <p>
+ * Keeps the compression ratio, the CPU time spent per message on each side
+ * and the payload and wire bytes sent, to show whether compression pays off
+ * on a given link.
+ */
+public class PayloadCompressor {
+
+	public static final String CODEC_PROPERTY = "sdkperfCompression";
+	public static final String ORIGINAL_SIZE_PROPERTY = "sdkperfUncompressedSize";
+	public static final String DEFLATE = "deflate";
+
+	private static final ThreadMXBean ThreadBean = ManagementFactory.getThreadMXBean();
+	private static final boolean CpuTimeSupported = ThreadBean.isCurrentThreadCpuTimeSupported();
+	private static final double MB = 1024 * 1024;
+
+	private final int _level;
+	private final Queue<DeflateWorker> _deflaters = new ConcurrentLinkedQueue<DeflateWorker>();
+	private final Queue<InflateWorker> _inflaters = new ConcurrentLinkedQueue<InflateWorker>();
+
+	private final AtomicLong _compressed = new AtomicLong();
+	private final AtomicLong _payloadBytes = new AtomicLong();
+	private final AtomicLong _wireBytes = new AtomicLong();
+	private final AtomicLong _compressNanos = new AtomicLong();
+	private final AtomicLong _decompressed = new AtomicLong();
+	private final AtomicLong _decompressNanos = new AtomicLong();
+	private final AtomicLong _decompressFailed = new AtomicLong();
+	private long _lastReportNanos = System.nanoTime();
+	private long _lastPayloadBytes = 0;
+	private long _lastWireBytes = 0;
+
+	/**
+	 * @param codec only {@link #DEFLATE} is available
+	 * @param level deflate level 1 to 9, or -1 to only decompress what is
+	 *            received
+	 */
+	public PayloadCompressor(String codec, int level) {
+		if (!DEFLATE.equalsIgnoreCase(codec)) {
+			throw new IllegalArgumentException("Compression codec " + codec + " is not available, only " + DEFLATE
+					+ " is (LZ4 and zstd need libraries the plugin does not ship)");
+		}
+		if (level != -1 && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Compression level must be 1 to 9, got " + level);
+		}
+		_level = level;
+	}
+
+	/** False if this instance only decompresses. */
+	public boolean isCompressing() {
+		return _level != -1;
+	}
+
+	public int getLevel() {
+		return _level;
+	}
+
+	/** Writes the compressed payload as the body of an empty message. */
+	public void writeCompressed(byte[] payload, BytesMessage message) throws JMSException {
+		long startCpu = cpuTime();
+		DeflateWorker worker = _deflaters.poll();
+		if (worker == null) {
+			worker = new DeflateWorker(_level);
+		}
+		try {
+			int length = worker.deflate(payload);
+			message.setStringProperty(CODEC_PROPERTY, DEFLATE);
+			message.setIntProperty(ORIGINAL_SIZE_PROPERTY, payload.length);
+			message.writeBytes(worker._out, 0, length);
+			_wireBytes.addAndGet(length);
+		} finally {
+			_deflaters.offer(worker);
+		}
+		_payloadBytes.addAndGet(payload.length);
+		_compressed.incrementAndGet();
+		_compressNanos.addAndGet(cpuTime() - startCpu);
+	}
+
+	/**
+	 * Replaces the compressed body of a received message with the original
+	 * payload, so sdkperf sees the bytes that were published. Messages that
+	 * were not compressed are left alone.
+	 *
+	 * @return false if the message was not compressed
+	 */
+	public boolean decompress(Message message) throws JMSException {
+		if (!(message instanceof BytesMessage) || !message.propertyExists(CODEC_PROPERTY)) {
+			return false;
+		}
+		long startCpu = cpuTime();
+		BytesMessage bytesMessage = (BytesMessage) message;
+		InflateWorker worker = _inflaters.poll();
+		if (worker == null) {
+			worker = new InflateWorker();
+		}
+		try {
+			int length = worker.read(bytesMessage);
+			int originalSize = message.getIntProperty(ORIGINAL_SIZE_PROPERTY);
+			worker.inflate(length, originalSize);
+			bytesMessage.clearBody();
+			bytesMessage.writeBytes(worker._out, 0, originalSize);
+			bytesMessage.reset();
+		} catch (DataFormatException e) {
+			_decompressFailed.incrementAndGet();
+			JMSException jmsException = new JMSException("Corrupt compressed payload: " + e.getMessage());
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		} finally {
+			_inflaters.offer(worker);
+		}
+		_decompressed.incrementAndGet();
+		_decompressNanos.addAndGet(cpuTime() - startCpu);
+		return true;
+	}
+
+	private static long cpuTime() {
+		return CpuTimeSupported ? ThreadBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	public long getCompressed() {
+		return _compressed.get();
+	}
+
+	public long getDecompressed() {
+		return _decompressed.get();
+	}
+
+	/** Payload bytes per wire byte of the messages compressed so far. */
+	public double getRatio() {
+		long wire = _wireBytes.get();
+		return (wire == 0) ? 0 : (double) _payloadBytes.get() / wire;
+	}
+
+	public long getCompressNanosPerMsg() {
+		long msgs = _compressed.get();
+		return (msgs == 0) ? 0 : _compressNanos.get() / msgs;
+	}
+
+	public long getDecompressNanosPerMsg() {
+		long msgs = _decompressed.get();
+		return (msgs == 0) ? 0 : _decompressNanos.get() / msgs;
+	}
+
+	public void resetStats() {
+		_compressed.set(0);
+		_payloadBytes.set(0);
+		_wireBytes.set(0);
+		_compressNanos.set(0);
+		_decompressed.set(0);
+		_decompressNanos.set(0);
+		_decompressFailed.set(0);
+		synchronized (this) {
+			_lastPayloadBytes = 0;
+			_lastWireBytes = 0;
+		}
+	}
+
+	public String getTotalStats() {
+		return "compression total: " + getStats();
+	}
+
+	/** Meant to be called from a single reporting thread. */
+	public synchronized String getIntervalStats() {
+		long now = System.nanoTime();
+		long payloadBytes = _payloadBytes.get();
+		long wireBytes = _wireBytes.get();
+		double secs = (now - _lastReportNanos) / 1e9;
+		String rates = String.format("wire %.2f MB/s carrying %.2f MB/s of payload, ",
+				(wireBytes - _lastWireBytes) / MB / secs, (payloadBytes - _lastPayloadBytes) / MB / secs);
+		_lastReportNanos = now;
+		_lastPayloadBytes = payloadBytes;
+		_lastWireBytes = wireBytes;
+		return "compression interval: " + rates + getStats();
+	}
+
+	private String getStats() {
+		return DEFLATE + (isCompressing() ? " level " + _level : "") + ", compressed=" + _compressed.get()
+				+ String.format(", ratio=%.2f, payload=%.1f MB, wire=%.1f MB", getRatio(), _payloadBytes.get() / MB,
+						_wireBytes.get() / MB) + ", compress cpu/msg (us)="
+				+ String.format("%.1f", getCompressNanosPerMsg() / 1000.0) + ", decompressed=" + _decompressed.get()
+				+ ", decompress cpu/msg (us)=" + String.format("%.1f", getDecompressNanosPerMsg() / 1000.0)
+				+ ", decompress failed=" + _decompressFailed.get();
+	}
+
+	/** A pooled deflater with its output buffer, grown to fit the largest payload so far. */
+	private static class DeflateWorker {
+
+		private final Deflater _deflater;
+		private byte[] _out = new byte[0];
+
+		DeflateWorker(int level) {
+			_deflater = new Deflater(level);
+		}
+
+		/** @return the compressed length, in _out */
+		int deflate(byte[] payload) {
+			_deflater.reset();
+			_deflater.setInput(payload);
+			_deflater.finish();
+			// Larger than the deflate output of incompressible data, so one call normally does.
+			int bound = payload.length + (payload.length >> 8) + 64;
+			if (_out.length < bound) {
+				_out = new byte[bound];
+			}
+			int length = 0;
+			while (!_deflater.finished()) {
+				if (length == _out.length) {
+					byte[] out = new byte[_out.length * 2];
+					System.arraycopy(_out, 0, out, 0, length);
+					_out = out;
+				}
+				length += _deflater.deflate(_out, length, _out.length - length);
+			}
+			return length;
+		}
+	}
+
+	/** A pooled inflater with buffers for the received body and the restored payload. */
+	private static class InflateWorker {
+
+		private final Inflater _inflater = new Inflater();
+		private byte[] _in = new byte[0];
+		private byte[] _out = new byte[0];
+
+		/** @return the body length, in _in */
+		int read(BytesMessage message) throws JMSException {
+			long bodyLength = message.getBodyLength();
+			if (bodyLength > Integer.MAX_VALUE) {
+				throw new JMSException("Compressed body of " + bodyLength + " bytes is too large");
+			}
+			if (_in.length < bodyLength) {
+				_in = new byte[(int) bodyLength];
+			}
+			message.reset();
+			return Math.max(message.readBytes(_in, (int) bodyLength), 0);
+		}
+
+		void inflate(int length, int originalSize) throws DataFormatException {
+			if (_out.length < originalSize) {
+				_out = new byte[originalSize];
+			}
+			_inflater.reset();
+			_inflater.setInput(_in, 0, length);
+			int inflated = 0;
+			while (inflated < originalSize && !_inflater.finished()) {
+				int n = _inflater.inflate(_out, inflated, originalSize - inflated);
+				if (n == 0 && (_inflater.needsInput() || _inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != originalSize) {
+				throw new DataFormatException("inflated " + inflated + " bytes, expected " + originalSize);
+			}
+		}
+	}
+}
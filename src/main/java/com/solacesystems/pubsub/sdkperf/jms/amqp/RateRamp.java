@@ -0,0 +1,273 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Raises the publish rate of one client step by step to find the highest
+ * rate the broker sustains. Each step sends at its rate for a fixed time,
+ * split evenly over the producer indices of the client, each on its own
+ * FixedRateSchedule. The step is then checked against the SLOs using the
+ * async publish windows of the client:
+ * <ul>
+ * <li>the ack latency percentile, measured from the intended send time so
+ * that window waits and publisher stalls count,</li>
+ * <li>the share of sends failed through onException,</li>
+ * <li>the ack rate, which falls behind the step rate once acks back up.</li>
+ * </ul>
+ * The ramp stops at the first step that misses an SLO, or after the max
+ * rate, and logs the rate-vs-latency curve. The rest of the run publishes at
+ * the highest rate that passed.
+ * <p>
+ * awaitNext() is called by the publish thread of each producer index. Step
+ * changes are made under the ramp's lock, the wait for the send time is not.
+ */
+public class RateRamp {
+
+	private static final Log Trace = LogFactory.getLog(RateRamp.class);
+
+	private final String _clientIdStr;
+	private final AsyncPublishWindow[] _windows;
+	private final double _startRate;
+	private final double _stepRate;
+	private final double _maxRate;
+	private final long _stepNanos;
+	private final double _latencyPercentile;
+	private final long _latencySloNanos;
+	private final double _maxErrorPercent;
+	private final double _rateTolerancePercent;
+
+	private final List<Step> _steps = new ArrayList<Step>();
+	private volatile boolean _done = false;
+	private volatile double _bestRate = 0;
+	private volatile boolean _restartStep = false;
+
+	// State of the step in progress.
+	private double _rate;
+	private FixedRateSchedule[] _schedules = null;
+	private long _stepStartNanos;
+	private long _startSent;
+	private long _startAcked;
+	private long _startFailed;
+	private LatencyHistogram.Snapshot _startLatency;
+
+	public RateRamp(String clientIdStr, AsyncPublishWindow[] windows, double startRate, double stepRate,
+			double maxRate, long stepMsec, double latencyPercentile, long latencySloUsec, double maxErrorPercent,
+			double rateTolerancePercent) {
+		if (startRate <= 0 || stepRate <= 0) {
+			throw new IllegalArgumentException("Rate ramp needs a start and step rate above 0, got " + startRate
+					+ " and " + stepRate);
+		}
+		if (stepMsec < 1) {
+			throw new IllegalArgumentException("Rate ramp step must be at least 1 ms, got " + stepMsec);
+		}
+		for (AsyncPublishWindow window : windows) {
+			if (!window.hasCorrectedLatency()) {
+				throw new IllegalArgumentException("Rate ramp needs publish windows that keep intended send times");
+			}
+		}
+		_clientIdStr = clientIdStr;
+		_windows = windows;
+		_startRate = startRate;
+		_stepRate = stepRate;
+		_maxRate = maxRate;
+		_stepNanos = TimeUnit.MILLISECONDS.toNanos(stepMsec);
+		_latencyPercentile = latencyPercentile;
+		_latencySloNanos = TimeUnit.MICROSECONDS.toNanos(latencySloUsec);
+		_maxErrorPercent = maxErrorPercent;
+		_rateTolerancePercent = rateTolerancePercent;
+		_rate = startRate;
+	}
+
+	/**
+	 * Waits until the intended time of the next send of producerIndex at the
+	 * current step rate, ending the step first if its time is up.
+	 *
+	 * @return the intended send time, in System.nanoTime() terms
+	 */
+	public long awaitNext(int producerIndex) {
+		FixedRateSchedule schedule;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (_schedules == null || _restartStep) {
+				_restartStep = false;
+				startStep(now);
+			} else if (!_done && now - _stepStartNanos >= _stepNanos) {
+				endStep(now);
+				startStep(now);
+			}
+			schedule = _schedules[producerIndex];
+		}
+		return schedule.awaitNext();
+	}
+
+	private void startStep(long now) {
+		_schedules = new FixedRateSchedule[_windows.length];
+		for (int i = 0; i < _schedules.length; i++) {
+			_schedules[i] = new FixedRateSchedule(_rate / _schedules.length);
+		}
+		_stepStartNanos = now;
+		_startSent = 0;
+		_startAcked = 0;
+		_startFailed = 0;
+		for (AsyncPublishWindow window : _windows) {
+			_startSent += window.getSent();
+			_startAcked += window.getAcked();
+			_startFailed += window.getFailed();
+		}
+		_startLatency = getLatency();
+	}
+
+	private void endStep(long now) {
+		long sent = -_startSent;
+		long acked = -_startAcked;
+		long failed = -_startFailed;
+		long outstanding = 0;
+		for (AsyncPublishWindow window : _windows) {
+			sent += window.getSent();
+			acked += window.getAcked();
+			failed += window.getFailed();
+			outstanding += window.getOutstanding();
+		}
+		double secs = (now - _stepStartNanos) / 1e9;
+		Step step = new Step(_rate, sent / secs, acked / secs, failed, outstanding, getLatency().since(_startLatency));
+
+		long latencyNanos = step._latency.getValueAtPercentile(_latencyPercentile);
+		double minRate = _rate * (100 - _rateTolerancePercent) / 100;
+		if (step._latency.getTotalCount() == 0) {
+			step._failedSlo = "no acks";
+		} else if (latencyNanos > _latencySloNanos) {
+			String percentile = (_latencyPercentile == Math.rint(_latencyPercentile))
+					? String.valueOf((long) _latencyPercentile) : String.valueOf(_latencyPercentile);
+			step._failedSlo = "p" + percentile + " latency " + TimeUnit.NANOSECONDS.toMicros(latencyNanos)
+					+ " us over " + TimeUnit.NANOSECONDS.toMicros(_latencySloNanos) + " us";
+		} else if (failed * 100.0 > sent * _maxErrorPercent && failed > 0) {
+			step._failedSlo = "failed sends " + String.format("%.2f", failed * 100.0 / Math.max(sent, 1)) + "% over "
+					+ _maxErrorPercent + "%";
+		} else if (step._ackRate < minRate) {
+			step._failedSlo = "ack rate " + Math.round(step._ackRate) + " msgs/s below " + Math.round(minRate);
+		}
+		_steps.add(step);
+		Trace.info("CLIENT " + _clientIdStr + ": rate ramp step " + step);
+
+		if (step._failedSlo == null) {
+			_bestRate = _rate;
+			if (_maxRate <= 0 || _rate + _stepRate <= _maxRate) {
+				_rate += _stepRate;
+				return;
+			}
+		}
+		_done = true;
+		_rate = (_bestRate > 0) ? _bestRate : _startRate;
+		logResult();
+	}
+
+	/** Ack latency from the intended send time of all producers of the client. */
+	private LatencyHistogram.Snapshot getLatency() {
+		LatencyHistogram.Snapshot latency = _windows[0].getCorrectedLatency();
+		for (int i = 1; i < _windows.length; i++) {
+			latency = latency.add(_windows[i].getCorrectedLatency());
+		}
+		return latency;
+	}
+
+	/** Logs the rate-vs-latency curve of the steps so far and the highest passing rate. */
+	public synchronized void logResult() {
+		String nl = System.getProperty("line.separator");
+		StringBuilder sb = new StringBuilder();
+		sb.append("CLIENT ").append(_clientIdStr).append(": rate ramp ").append(_done ? "done" : "stopped")
+				.append(" after ").append(_steps.size()).append(" steps, ");
+		if (_bestRate > 0) {
+			sb.append("max sustainable rate ").append(Math.round(_bestRate)).append(" msgs/s");
+		} else {
+			sb.append("no step met the SLOs");
+		}
+		sb.append(nl).append("    target msgs/s, sent msgs/s, acked msgs/s, failed, outstanding, ack latency (us)");
+		for (Step step : _steps) {
+			sb.append(nl).append("    ").append(step);
+		}
+		Trace.info(sb.toString());
+	}
+
+	/** The window counts were reset, so the step in progress starts over. */
+	public void resetStats() {
+		_restartStep = true;
+	}
+
+	public boolean isDone() {
+		return _done;
+	}
+
+	/** Highest step rate that met every SLO, 0 if none did. */
+	public double getBestRate() {
+		return _bestRate;
+	}
+
+	public synchronized List<Step> getSteps() {
+		return new ArrayList<Step>(_steps);
+	}
+
+	/** Results of one ramp step. */
+	public static class Step {
+
+		private final double _targetRate;
+		private final double _sendRate;
+		private final double _ackRate;
+		private final long _failed;
+		private final long _outstanding;
+		private final LatencyHistogram.Snapshot _latency;
+		private String _failedSlo = null;
+
+		Step(double targetRate, double sendRate, double ackRate, long failed, long outstanding,
+				LatencyHistogram.Snapshot latency) {
+			_targetRate = targetRate;
+			_sendRate = sendRate;
+			_ackRate = ackRate;
+			_failed = failed;
+			_outstanding = outstanding;
+			_latency = latency;
+		}
+
+		public double getTargetRate() {
+			return _targetRate;
+		}
+
+		public double getAckRate() {
+			return _ackRate;
+		}
+
+		public LatencyHistogram.Snapshot getLatency() {
+			return _latency;
+		}
+
+		public boolean isPassed() {
+			return _failedSlo == null;
+		}
+
+		@Override
+		public String toString() {
+			return Math.round(_targetRate) + ", " + Math.round(_sendRate) + ", " + Math.round(_ackRate) + ", "
+					+ _failed + ", " + _outstanding + ", " + _latency.toSummaryString() + ": "
+					+ (_failedSlo == null ? "pass" : "FAIL, " + _failedSlo);
+		}
+	}
+}
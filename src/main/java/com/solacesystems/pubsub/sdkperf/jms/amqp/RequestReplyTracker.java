@@ -0,0 +1,246 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests of one client that are waiting for their reply. Every request
+ * gets a sequential id, sent in the {@link #REQUEST_ID_PROPERTY} application
+ * property and copied into the reply by the replier. The ids and send times
+ * of pending requests live in an open addressing table of primitive arrays,
+ * so a request costs no boxing and no allocation.
+ * <p>
+ * At most maxOutstanding requests are pending at once: acquire() blocks
+ * until a reply or a timeout frees a slot. A request with no reply within
+ * the timeout is counted as timed out, and a reply that arrives after that
+ * as late.
+ */
+public class RequestReplyTracker {
+
+	public static final String REQUEST_ID_PROPERTY = "sdkperfRequestId";
+
+	private static final long EMPTY = 0;
+	private static final long WAIT_SLICE_MSEC = 10;
+
+	private final int _maxOutstanding;
+	private final long _timeoutNanos;
+	// Keys of the table, EMPTY for a free slot, and the send time of each.
+	private final long[] _ids;
+	private final long[] _sentNanos;
+	private final int _mask;
+	private final long[] _expired;
+	private int _outstanding = 0;
+	private long _nextId = 1;
+
+	private long _requests = 0;
+	private long _replies = 0;
+	private long _timeouts = 0;
+	private long _lateReplies = 0;
+	private long _intervalTimeouts = 0;
+	private final LatencyHistogram _rtt = new LatencyHistogram();
+	private LatencyHistogram.Snapshot _lastIntervalSnapshot = null;
+
+	public RequestReplyTracker(int maxOutstanding, long timeoutMsec) {
+		if (maxOutstanding < 1) {
+			throw new IllegalArgumentException("Outstanding request limit must be at least 1, got " + maxOutstanding);
+		}
+		if (timeoutMsec < 1) {
+			throw new IllegalArgumentException("Request timeout must be at least 1 ms, got " + timeoutMsec);
+		}
+		_maxOutstanding = maxOutstanding;
+		_timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMsec);
+		// At most half full, so probe sequences stay short.
+		int size = 2;
+		while (size < maxOutstanding * 2) {
+			size <<= 1;
+		}
+		_ids = new long[size];
+		_sentNanos = new long[size];
+		_mask = size - 1;
+		_expired = new long[maxOutstanding];
+	}
+
+	/**
+	 * Registers a new request, blocking while maxOutstanding are pending.
+	 * Requests older than the timeout are expired while waiting.
+	 *
+	 * @return the id to send the request with
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		while (_outstanding >= _maxOutstanding) {
+			if (expire(System.nanoTime() - _timeoutNanos) == 0) {
+				wait(WAIT_SLICE_MSEC);
+			}
+		}
+		long id = _nextId++;
+		put(id, System.nanoTime());
+		_requests++;
+		return id;
+	}
+
+	/** The request could not be sent, so no reply will come. */
+	public synchronized void cancel(long id) {
+		if (remove(id) >= 0) {
+			_requests--;
+		}
+	}
+
+	public void onReply(long id) {
+		long sentNanos;
+		synchronized (this) {
+			sentNanos = remove(id);
+			if (sentNanos < 0) {
+				_lateReplies++;
+				return;
+			}
+			_replies++;
+		}
+		_rtt.recordValue(System.nanoTime() - sentNanos);
+	}
+
+	/** A reply without a request id, for example from a replier that drops application properties. */
+	public synchronized void onUnmatchedReply() {
+		_lateReplies++;
+	}
+
+	/**
+	 * Waits up to the request timeout for every pending request to get its
+	 * reply, then counts the rest as timed out.
+	 *
+	 * @return false if requests timed out
+	 */
+	public synchronized boolean awaitReplies() throws InterruptedException {
+		long deadline = System.nanoTime() + _timeoutNanos;
+		while (_outstanding > 0 && System.nanoTime() < deadline) {
+			wait(WAIT_SLICE_MSEC);
+		}
+		if (_outstanding == 0) {
+			return true;
+		}
+		expire(Long.MAX_VALUE);
+		return false;
+	}
+
+	/** Counts every request sent before sentBefore as timed out and frees its slot. */
+	private int expire(long sentBefore) {
+		int count = 0;
+		for (int i = 0; i < _ids.length; i++) {
+			if (_ids[i] != EMPTY && _sentNanos[i] - sentBefore < 0) {
+				_expired[count++] = _ids[i];
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			remove(_expired[i]);
+		}
+		_timeouts += count;
+		_intervalTimeouts += count;
+		return count;
+	}
+
+	private void put(long id, long sentNanos) {
+		int slot = (int) id & _mask;
+		while (_ids[slot] != EMPTY) {
+			slot = (slot + 1) & _mask;
+		}
+		_ids[slot] = id;
+		_sentNanos[slot] = sentNanos;
+		_outstanding++;
+	}
+
+	/** @return the send time of the request, or -1 if it is not pending */
+	private long remove(long id) {
+		int slot = (int) id & _mask;
+		while (_ids[slot] != id) {
+			if (_ids[slot] == EMPTY) {
+				return -1;
+			}
+			slot = (slot + 1) & _mask;
+		}
+		long sentNanos = _sentNanos[slot];
+		_ids[slot] = EMPTY;
+		_outstanding--;
+		// Move later entries of the probe sequence back into the freed slot.
+		int free = slot;
+		for (int next = (free + 1) & _mask; _ids[next] != EMPTY; next = (next + 1) & _mask) {
+			int home = (int) _ids[next] & _mask;
+			if (((next - home) & _mask) >= ((next - free) & _mask)) {
+				_ids[free] = _ids[next];
+				_sentNanos[free] = _sentNanos[next];
+				_ids[next] = EMPTY;
+				free = next;
+			}
+		}
+		notifyAll();
+		return sentNanos;
+	}
+
+	public synchronized void resetStats() {
+		_requests = 0;
+		_replies = 0;
+		_timeouts = 0;
+		_lateReplies = 0;
+		_intervalTimeouts = 0;
+		_rtt.reset();
+		_lastIntervalSnapshot = null;
+	}
+
+	public int getMaxOutstanding() {
+		return _maxOutstanding;
+	}
+
+	public synchronized int getOutstanding() {
+		return _outstanding;
+	}
+
+	public synchronized long getRequests() {
+		return _requests;
+	}
+
+	public synchronized long getReplies() {
+		return _replies;
+	}
+
+	public synchronized long getTimeouts() {
+		return _timeouts;
+	}
+
+	public synchronized long getLateReplies() {
+		return _lateReplies;
+	}
+
+	/** Round-trip time from request to reply since the start of the run. */
+	public LatencyHistogram.Snapshot getRtt() {
+		return _rtt.snapshot();
+	}
+
+	public synchronized String getTotalStats() {
+		return "request/reply total: requests=" + _requests + ", replies=" + _replies + ", timeouts=" + _timeouts
+				+ ", late replies=" + _lateReplies + ", rtt (us): " + _rtt.snapshot().toSummaryString();
+	}
+
+	/** Meant to be called from a single reporting thread. */
+	public synchronized String getIntervalStats() {
+		LatencyHistogram.Snapshot current = _rtt.snapshot();
+		LatencyHistogram.Snapshot interval = (_lastIntervalSnapshot == null) ? current
+				: current.since(_lastIntervalSnapshot);
+		_lastIntervalSnapshot = current;
+		long timeouts = _intervalTimeouts;
+		_intervalTimeouts = 0;
+		return "request/reply interval: outstanding=" + _outstanding + ", timeouts=" + timeouts + ", rtt (us): "
+				+ interval.toSummaryString();
+	}
+}
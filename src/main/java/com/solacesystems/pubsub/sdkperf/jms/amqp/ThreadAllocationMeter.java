@@ -0,0 +1,97 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bytes allocated on the heap by one thread, read from the HotSpot thread MX
+ * bean, divided by the messages that thread sent in the same time. Use one
+ * meter per publish thread and count its sends with onSent(). Reports -1 on
+ * JVMs without the counter.
+ */
+public class ThreadAllocationMeter {
+
+	private static final Log Trace = LogFactory.getLog(ThreadAllocationMeter.class);
+	private static final com.sun.management.ThreadMXBean ThreadBean = lookupThreadBean();
+
+	private volatile long _threadId = -1;
+	// Written only by the bound thread.
+	private volatile long _msgs = 0;
+	private long _lastBytes = 0;
+	private long _lastMsgs = 0;
+
+	private static com.sun.management.ThreadMXBean lookupThreadBean() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+				if (sunBean.isThreadAllocatedMemorySupported()) {
+					sunBean.setThreadAllocatedMemoryEnabled(true);
+					return sunBean;
+				}
+			}
+		} catch (Throwable t) {
+			Trace.debug("Thread allocation counter not available.", t);
+		}
+		return null;
+	}
+
+	/** Binds the meter to the calling thread the first time it is called. */
+	public void bindToCurrentThread() {
+		if (_threadId == -1) {
+			synchronized (this) {
+				if (_threadId == -1) {
+					_threadId = Thread.currentThread().getId();
+					_lastBytes = allocatedBytes();
+					_lastMsgs = _msgs;
+				}
+			}
+		}
+	}
+
+	/** Counts a message sent by the bound thread. */
+	public void onSent() {
+		_msgs++;
+	}
+
+	/** Bytes allocated per message since the previous call. -1 if unknown or nothing was sent. */
+	public synchronized long bytesPerMsgSinceLast() {
+		long bytes = allocatedBytes();
+		long msgs = _msgs;
+		if (bytes < 0) {
+			return -1;
+		}
+		if (msgs == _lastMsgs) {
+			_lastBytes = bytes;
+			return -1;
+		}
+		long perMsg = (bytes - _lastBytes) / (msgs - _lastMsgs);
+		_lastBytes = bytes;
+		_lastMsgs = msgs;
+		return perMsg;
+	}
+
+	private long allocatedBytes() {
+		if (ThreadBean == null || _threadId == -1) {
+			return -1;
+		}
+		return ThreadBean.getThreadAllocatedBytes(_threadId);
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Runs the plugin clients against an embedded broker, publishing to and
+ * consuming from one queue in the same client, and records throughput and
+ * latency baselines with BenchmarkBaselines. Each scenario publishes
+ * sdkperf.benchmark.msgs messages (default 10000, synchronous sends a
+ * quarter of that) as fast as the client allows and checks every one is
+ * received. The fan-out scenarios publish round robin to 32 queues, on the
+ * anonymous producer and through the producer cache, and the concurrent
+ * producers scenario publishes from two threads on one client, the idle
+ * flush scenario leaves a client ack batch to its time limit, and the
+ * templates in flight scenario reuses message templates behind a publish
+ * window larger than the template ring. The
+ * request/reply scenario sends requests to a second client in sdkperf reply
+ * mode, and the large message scenario sends 1 MB messages from a direct buffer. The
+ * rate ramp scenarios step the publish rate up against loose and impossible
+ * latency SLOs, and the compressed scenario deflates every payload. The
+ * flight recorder scenario runs inside a JFR recording and reads the
+ * sampled events back. The failover scenario is FailoverRecorderTest.
+ */
+public class AmqpClientBenchmarkTest {
+
+	private static final String QUEUE = "sdkperf.benchmark";
+	private static final int MSG_SIZE = 100;
+	private static final long RECEIVE_TIMEOUT_MSEC = 60000;
+	private static final int FAN_OUT_QUEUES = 32;
+	private static final int OUTSTANDING_REQUESTS = 10;
+	private static final int LARGE_MSG_SIZE = 1024 * 1024;
+	private static final int FLIGHT_RECORDER_SAMPLE_INTERVAL = 100;
+
+	private final long _msgs = Long.getLong("sdkperf.benchmark.msgs", 10000);
+
+	private EmbeddedAmqpBroker _broker;
+	private SdkperfTestClient _testClient = null;
+	private SdkperfTestClient _replier = null;
+
+	@Before
+	public void setUp() throws Exception {
+		_broker = new EmbeddedAmqpBroker();
+		_broker.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try {
+			if (_testClient != null) {
+				_testClient.disconnect();
+			}
+			if (_replier != null) {
+				_replier.disconnect();
+			}
+		} finally {
+			_broker.stop();
+		}
+	}
+
+	@Test
+	public void asyncPublishConsume() throws Exception {
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE + ",100,"
+				+ AmqpPluginProperties.END_TO_END_LATENCY + ",true");
+		run("asyncPersistent", _msgs);
+
+		AmqpClientMetrics metrics = new AmqpClientMetrics(_testClient.getClient());
+		assertEquals(_msgs, metrics.getAsyncAcked());
+		assertEquals(0, metrics.getAsyncFailed());
+		BenchmarkBaselines.recordLatency("asyncPersistent", "ackLatency", metrics.getAckLatency());
+		BenchmarkBaselines.recordLatency("asyncPersistent", "e2eLatency", metrics.getEndToEndLatency());
+	}
+
+	@Test
+	public void syncPublishConsume() throws Exception {
+		connect(AmqpJmsClient.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.END_TO_END_LATENCY + ",true");
+		run("syncPersistent", _msgs / 4);
+
+		BenchmarkBaselines.recordLatency("syncPersistent", "e2eLatency", _testClient.getClient().getEndToEndLatency());
+	}
+
+	@Test
+	public void transactedPublishConsume() throws Exception {
+		connect(AmqpJmsClient.class, "-mt=persistent", "-ats=100");
+		run("transacted", _msgs);
+	}
+
+	@Test
+	public void clientAckConsume() throws Exception {
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE + ",100,"
+				+ AmqpPluginProperties.CONSUMER_ACK_MODE + ",client," + AmqpPluginProperties.ACK_BATCH_SIZE + ",100");
+		run("clientAck", _msgs);
+	}
+
+	@Test
+	public void clientAckIdleFlush() throws Exception {
+		// The batch never fills, so only the time limit acknowledges it.
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.CONSUMER_ACK_MODE
+				+ ",client," + AmqpPluginProperties.ACK_BATCH_SIZE + ",1000000,"
+				+ AmqpPluginProperties.ACK_BATCH_TIME_MSEC + ",100");
+		long count = 100;
+		run("clientAckIdleFlush", count);
+
+		AmqpMessageListener listener = _testClient.getClient().getAmqpListeners().get(0);
+		long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT_MSEC;
+		while (listener.getMsgsAcked() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, listener.getMsgsAcked());
+	}
+
+	@Test
+	public void anonymousProducerFanOut() throws Exception {
+		connectFanOut(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+				+ ",100");
+		run("fanOutAnonymous", _msgs);
+	}
+
+	@Test
+	public void cachedProducerFanOut() throws Exception {
+		connectFanOut(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+				+ ",100," + AmqpPluginProperties.PRODUCER_CACHE_SIZE + "," + FAN_OUT_QUEUES);
+		run("fanOutCached", _msgs);
+
+		DestinationProducerCache cache = _testClient.getClient().getProducerCache(0);
+		assertEquals(FAN_OUT_QUEUES, cache.getAttaches());
+		assertEquals(_msgs - FAN_OUT_QUEUES, cache.getHits());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void concurrentProducers() throws Exception {
+		// Two publish threads on one client: each must use its own window, producer cache and sequence numbers.
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-cpt=2", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+				+ ",100," + AmqpPluginProperties.PRODUCER_CACHE_SIZE + ",4," + AmqpPluginProperties.FAILOVER_STATS
+				+ ",true");
+		long perProducer = _msgs / 2;
+		_testClient.publishConcurrently(perProducer);
+		assertTrue(_testClient.awaitReceived(perProducer * 2, RECEIVE_TIMEOUT_MSEC));
+
+		AmqpJms_2_0_Client client = (AmqpJms_2_0_Client) _testClient.getClient();
+		for (int i = 0; i < 2; i++) {
+			assertTrue(client.getPublishWindow(i).awaitEmpty(RECEIVE_TIMEOUT_MSEC));
+			assertEquals(perProducer, client.getPublishWindow(i).getAcked());
+			DestinationProducerCache cache = client.getProducerCache(i);
+			assertEquals(1, cache.getAttaches());
+			assertEquals(perProducer - 1, cache.getHits());
+		}
+		assertEquals(0, client.getLost());
+		assertEquals(0, client.getDuplicates());
+	}
+
+	@Test
+	public void templatesInFlight() throws Exception {
+		// A window larger than the ring: templates still in flight must be rebuilt, not resent.
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE + ",100,"
+				+ AmqpPluginProperties.MESSAGE_TEMPLATES + ",true," + AmqpPluginProperties.TEMPLATE_RING_SIZE + ",4,"
+				+ AmqpPluginProperties.FAILOVER_STATS + ",true");
+		run("templatesInFlight", _msgs);
+
+		AmqpJms_2_0_Client client = (AmqpJms_2_0_Client) _testClient.getClient();
+		assertTrue(client.getPublishWindow(0).awaitEmpty(RECEIVE_TIMEOUT_MSEC));
+		assertEquals(_msgs, client.getPublishWindow(0).getAcked());
+		MessageTemplateRing ring = client.getTemplateRing(0);
+		assertEquals(_msgs, ring.getReused() + ring.getBuilt());
+		assertEquals(0, client.getLost());
+		assertEquals(0, client.getDuplicates());
+	}
+
+	@Test
+	public void producerCacheEviction() throws Exception {
+		// Round robin over more queues than the cache holds: every send evicts a producer with sends in flight.
+		connectFanOut(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+				+ ",100," + AmqpPluginProperties.PRODUCER_CACHE_SIZE + "," + (FAN_OUT_QUEUES / 2));
+		run("fanOutEvicting", _msgs / 10);
+
+		AmqpClientMetrics metrics = new AmqpClientMetrics(_testClient.getClient());
+		assertEquals(_msgs / 10, metrics.getAsyncAcked());
+		assertEquals(0, metrics.getAsyncFailed());
+		DestinationProducerCache cache = _testClient.getClient().getProducerCache(0);
+		assertEquals(_msgs / 10 - FAN_OUT_QUEUES / 2, cache.getEvictions());
+	}
+
+	@Test
+	public void requestReply() throws Exception {
+		_replier = new SdkperfTestClient(_broker, AmqpJmsClient.class, "-cm=reply");
+		_replier.consume(QUEUE);
+		_testClient = new SdkperfTestClient(_broker, AmqpJmsClient.class, "-epl=" + AmqpPluginProperties.REQUEST_REPLY
+				+ ",true," + AmqpPluginProperties.REQUEST_OUTSTANDING + "," + OUTSTANDING_REQUESTS);
+		_testClient.publishTo(QUEUE, MSG_SIZE);
+		RequestReplyTracker tracker = _testClient.getClient().getRequestReplyTracker();
+
+		long count = _msgs / 4;
+		long start = System.nanoTime();
+		_testClient.publish(count, 0);
+		assertTrue("requests still outstanding: " + tracker.getOutstanding(), tracker.awaitReplies());
+		long nanos = System.nanoTime() - start;
+		assertEquals(count, tracker.getRequests());
+		assertEquals(count, tracker.getReplies());
+		assertEquals(0, tracker.getTimeouts());
+		assertEquals(0, tracker.getLateReplies());
+		BenchmarkBaselines.recordRate("requestReply", count, nanos);
+		BenchmarkBaselines.recordLatency("requestReply", "rtt", tracker.getRtt());
+	}
+
+	@Test
+	public void concurrentRequests() throws Exception {
+		// Two publish threads: each request must go out under its own id and get its own reply.
+		_replier = new SdkperfTestClient(_broker, AmqpJmsClient.class, "-cm=reply");
+		_replier.consume(QUEUE);
+		_testClient = new SdkperfTestClient(_broker, AmqpJmsClient.class, "-cpt=2", "-epl="
+				+ AmqpPluginProperties.REQUEST_REPLY + ",true," + AmqpPluginProperties.REQUEST_OUTSTANDING + ","
+				+ OUTSTANDING_REQUESTS);
+		_testClient.publishTo(QUEUE, MSG_SIZE);
+		RequestReplyTracker tracker = _testClient.getClient().getRequestReplyTracker();
+
+		long perProducer = _msgs / 8;
+		_testClient.publishConcurrently(perProducer);
+		assertTrue("requests still outstanding: " + tracker.getOutstanding(), tracker.awaitReplies());
+		assertEquals(perProducer * 2, tracker.getReplies());
+		assertEquals(0, tracker.getTimeouts());
+		assertEquals(0, tracker.getLateReplies());
+	}
+
+	@Test
+	public void largeMessages() throws Exception {
+		connect(AmqpJmsClient.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.LARGE_MESSAGE_SIZE + ","
+				+ LARGE_MSG_SIZE);
+		run("largeMessages", _msgs / 200);
+
+		LargeMessageSource source = _testClient.getClient().getLargeMessageSource();
+		assertEquals(_msgs / 200, source.getMessages());
+		assertEquals(_msgs / 200 * LARGE_MSG_SIZE, source.getBytes());
+		assertTrue(source.getMBytesPerSec() > 0);
+		assertTrue(source.getHeapHighWater() > 0);
+	}
+
+	@Test
+	public void compressedPublishConsume() throws Exception {
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-z=6", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+				+ ",100");
+		run("compressed", _msgs);
+
+		PayloadCompressor compressor = _testClient.getClient().getCompressor();
+		assertEquals(_msgs, compressor.getCompressed());
+		assertEquals(_msgs, compressor.getDecompressed());
+		assertTrue(compressor.getRatio() > 1);
+	}
+
+	@Test
+	public void flightRecorder() throws Exception {
+		Recording recording = new Recording();
+		for (String name : new String[] { "Publish", "WindowStall", "Ack", "SendFailed", "Connect", "Dispatch" }) {
+			recording.enable("sdkperf.amqp." + name);
+		}
+		recording.start();
+		File file = File.createTempFile("sdkperf-amqp", ".jfr");
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		try {
+			connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+					+ ",100," + AmqpPluginProperties.FLIGHT_RECORDER + ",true,"
+					+ AmqpPluginProperties.FLIGHT_RECORDER_SAMPLE_INTERVAL + "," + FLIGHT_RECORDER_SAMPLE_INTERVAL);
+			assertTrue(_testClient.getClient().getFlightRecorder() instanceof JfrFlightRecorder);
+			run("flightRecorder", _msgs);
+			recording.stop();
+			recording.dump(file.toPath());
+			for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+				String name = event.getEventType().getName();
+				counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+			}
+		} finally {
+			recording.close();
+			file.delete();
+		}
+
+		assertEquals(Integer.valueOf(1), counts.get("sdkperf.amqp.Connect"));
+		assertEquals(Integer.valueOf((int) (_msgs / FLIGHT_RECORDER_SAMPLE_INTERVAL)), counts.get("sdkperf.amqp.Publish"));
+		assertEquals(Integer.valueOf((int) (_msgs / FLIGHT_RECORDER_SAMPLE_INTERVAL)), counts.get("sdkperf.amqp.Dispatch"));
+		assertTrue(counts.containsKey("sdkperf.amqp.Ack"));
+		assertFalse(counts.containsKey("sdkperf.amqp.SendFailed"));
+	}
+
+	@Test
+	public void rateRamp() throws Exception {
+		RateRamp ramp = connectRamp("500", "1000000");
+		assertTrue(ramp.isDone());
+		// How far a slow box gets is not checked: only that the ramp passes the first
+		// step and ends either at the max rate or at the first step that misses an SLO.
+		List<RateRamp.Step> steps = ramp.getSteps();
+		assertTrue(steps.get(0).toString(), steps.get(0).isPassed());
+		for (int i = 1; i < steps.size() - 1; i++) {
+			assertTrue(steps.get(i).toString(), steps.get(i).isPassed());
+		}
+		RateRamp.Step last = steps.get(steps.size() - 1);
+		RateRamp.Step best = last.isPassed() ? last : steps.get(steps.size() - 2);
+		if (last.isPassed()) {
+			assertEquals(1500, last.getTargetRate(), 0);
+		}
+		assertTrue(best.isPassed());
+		assertEquals(best.getTargetRate(), ramp.getBestRate(), 0);
+		BenchmarkBaselines.recordLatency("rateRamp", "ackLatencyAtMaxRate", best.getLatency());
+	}
+
+	@Test
+	public void rateRampStopsAtSlo() throws Exception {
+		// No broker acks a persistent message within 1 us.
+		RateRamp ramp = connectRamp("200", "1");
+		assertTrue(ramp.isDone());
+		assertEquals(0, ramp.getBestRate(), 0);
+		assertEquals(1, ramp.getSteps().size());
+		assertFalse(ramp.getSteps().get(0).isPassed());
+	}
+
+	/** Runs a ramp from 500 to 1500 msgs/s in steps of 500 and waits for every message. */
+	private RateRamp connectRamp(String stepMsec, String latencySloUsec) throws Exception {
+		connect(AmqpJms_2_0_Client.class, "-mt=persistent", "-mr=0", "-epl=" + AmqpPluginProperties.PUB_WINDOW_SIZE
+				+ ",100," + AmqpPluginProperties.RAMP_START_RATE + ",500," + AmqpPluginProperties.RAMP_MAX_RATE + ",1500,"
+				+ AmqpPluginProperties.RAMP_STEP_MSEC + "," + stepMsec + ","
+				+ AmqpPluginProperties.RAMP_LATENCY_SLO_USEC + "," + latencySloUsec + ","
+				+ AmqpPluginProperties.RAMP_RATE_TOLERANCE_PERCENT + ",20");
+		RateRamp ramp = ((AmqpJms_2_0_Client) _testClient.getClient()).getRateRamp();
+		long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT_MSEC;
+		while (!ramp.isDone() && System.currentTimeMillis() < deadline) {
+			_testClient.publish(100, 0);
+		}
+		assertTrue(_testClient.awaitReceived(_testClient.getPublishCalls(), RECEIVE_TIMEOUT_MSEC));
+		return ramp;
+	}
+
+	private void connectFanOut(Class<? extends AmqpJmsClient> clientClass, String... options) throws Exception {
+		List<String> queues = new ArrayList<String>();
+		for (int i = 0; i < FAN_OUT_QUEUES; i++) {
+			queues.add(QUEUE + "." + i);
+		}
+		_testClient = new SdkperfTestClient(_broker, clientClass, options);
+		_testClient.consume(queues.toArray(new String[queues.size()]));
+		_testClient.publishTo(queues, MSG_SIZE);
+	}
+
+	private void connect(Class<? extends AmqpJmsClient> clientClass, String... options) throws Exception {
+		_testClient = new SdkperfTestClient(_broker, clientClass, options);
+		_testClient.consume(QUEUE);
+		_testClient.publishTo(QUEUE, MSG_SIZE);
+	}
+
+	/** Publishes count messages, waits for all of them and records the rate. */
+	private void run(String scenario, long count) throws Exception {
+		long start = System.nanoTime();
+		_testClient.publish(count, 0);
+		assertTrue("received " + _testClient.getClient().getReceived() + " of " + count,
+				_testClient.awaitReceived(count, RECEIVE_TIMEOUT_MSEC));
+		long nanos = System.nanoTime() - start;
+		assertEquals(count, _testClient.getClient().getPublished());
+		BenchmarkBaselines.recordRate(scenario, count, nanos);
+	}
+}
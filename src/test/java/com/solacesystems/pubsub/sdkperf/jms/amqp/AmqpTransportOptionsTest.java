@@ -0,0 +1,179 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+
+import org.apache.qpid.jms.JmsConnectionFactory;
+import org.junit.Test;
+
+import com.solacesystems.pubsub.sdkperf.config.CliPropertiesParser;
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+
+/**
+ * Mapping of sdkperf's socket options and the plugin's transport options onto
+ * qpid transport URI options, the I/O thread cap of the connection pool and
+ * its parallel connects, and the connection settings shared by clients with
+ * the same options.
+ */
+public class AmqpTransportOptionsTest {
+
+	@Test
+	public void socketOptionsInConnectionUri() throws Exception {
+		RuntimeProperties props = CliPropertiesParser.parseCli(new String[] { "-cip=broker1:5672,broker2:5672",
+				"-nagle", "-ka=5000", "-epl=" + AmqpPluginProperties.SOCKET_SEND_BUFFER_SIZE + ",262144,"
+						+ AmqpPluginProperties.SOCKET_RECEIVE_BUFFER_SIZE + ",1," + AmqpPluginProperties.NATIVE_EPOLL
+						+ ",false,transport.receiveBufferSize,131072" }, System.out);
+		AmqpJmsSdkperfFactory.clearConnectionSettingsCache();
+		String uri = AmqpJmsSdkperfFactory.getConnectionUri(new AmqpJmsSdkperfFactory().createInitialContext(props, 1));
+
+		assertTrue(uri, uri.contains("failover.nested.transport.tcpNoDelay=false"));
+		assertTrue(uri, uri.contains("failover.nested.transport.tcpKeepAlive=true"));
+		assertTrue(uri, uri.contains("failover.nested.amqp.idleTimeout=10000"));
+		assertTrue(uri, uri.contains("failover.nested.transport.sendBufferSize=262144"));
+		assertTrue(uri, uri.contains("failover.nested.transport.useEpoll=false"));
+		// Set directly in -epl, so the plugin option does not override it.
+		assertTrue(uri, uri.contains("failover.nested.transport.receiveBufferSize=131072"));
+		assertFalse(uri, uri.contains("receiveBufferSize=1&") || uri.endsWith("receiveBufferSize=1"));
+	}
+
+	@Test
+	public void ioThreadsCapsPooledConnections() throws Exception {
+		EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+		broker.start();
+		List<SdkperfTestClient> clients = new ArrayList<SdkperfTestClient>();
+		try {
+			for (int i = 0; i < 4; i++) {
+				clients.add(new SdkperfTestClient(broker, AmqpJmsClient.class, "-epl="
+						+ AmqpPluginProperties.IO_THREADS + ",2," + AmqpPluginProperties.POOL_SESSIONS_PER_CONNECTION
+						+ ",1"));
+			}
+			assertEquals(2, AmqpConnectionPool.getConnectionCount());
+			assertEquals(4, AmqpConnectionPool.getSessionCount());
+		} finally {
+			for (SdkperfTestClient client : clients) {
+				client.disconnect();
+			}
+			broker.stop();
+		}
+		assertEquals(0, AmqpConnectionPool.getConnectionCount());
+	}
+
+	@Test
+	public void pooledConnectionsOpenInParallel() throws Exception {
+		EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+		broker.start();
+		final CyclicBarrier connecting = new CyclicBarrier(2);
+		final ConnectionFactory cf = new JmsConnectionFactory("amqp://127.0.0.1:" + broker.getPort(0)) {
+			@Override
+			public Connection createConnection(String username, String password) throws JMSException {
+				try {
+					// Only gets past here while the other lease is connecting too.
+					connecting.await(10, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new JMSException("Pooled connections were not opened in parallel: " + e);
+				}
+				return super.createConnection(username, password);
+			}
+		};
+		final AmqpConnectionPool.PooledConnection[] leases = new AmqpConnectionPool.PooledConnection[2];
+		final Exception[] errors = new Exception[2];
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						leases[index] = AmqpConnectionPool.lease("parallel", cf, null, null, 1, 0, null);
+					} catch (Exception e) {
+						errors[index] = e;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertNull(errors[0]);
+			assertNull(errors[1]);
+			assertEquals(2, AmqpConnectionPool.getConnectionCount());
+		} finally {
+			for (AmqpConnectionPool.PooledConnection lease : leases) {
+				if (lease != null) {
+					AmqpConnectionPool.release(lease, null);
+				}
+			}
+			broker.stop();
+		}
+		assertEquals(0, AmqpConnectionPool.getConnectionCount());
+	}
+
+	@Test
+	public void failedPooledConnectionIsNotReused() throws Exception {
+		EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+		broker.start();
+		String pooled = "-epl=" + AmqpPluginProperties.IO_THREADS + ",1";
+		try {
+			SdkperfTestClient failed = new SdkperfTestClient(broker, AmqpJmsClient.class, pooled);
+			failed.getClient()._pooledConnection.onException(new JMSException("connection lost"));
+			SdkperfTestClient client = new SdkperfTestClient(broker, AmqpJmsClient.class, pooled);
+			assertEquals(2, AmqpConnectionPool.getConnectionCount());
+			client.disconnect();
+			failed.disconnect();
+		} finally {
+			broker.stop();
+		}
+		assertEquals(0, AmqpConnectionPool.getConnectionCount());
+	}
+
+	@Test
+	public void connectAfterAnotherClientDisconnects() throws Exception {
+		EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+		broker.start();
+		String pooled = "-epl=" + AmqpPluginProperties.IO_THREADS + ",1";
+		try {
+			AmqpJmsSdkperfFactory.clearConnectionSettingsCache();
+			new SdkperfTestClient(broker, AmqpJmsClient.class, pooled).disconnect();
+
+			// Same options, so the same connection factory as the closed client.
+			SdkperfTestClient client = new SdkperfTestClient(broker, AmqpJmsClient.class, pooled);
+			try {
+				client.consume("reconnect");
+				client.publishTo("reconnect", 100);
+				client.publish(10, 0);
+				assertTrue(client.awaitReceived(10, 10000));
+			} finally {
+				client.disconnect();
+			}
+		} finally {
+			broker.stop();
+		}
+	}
+}
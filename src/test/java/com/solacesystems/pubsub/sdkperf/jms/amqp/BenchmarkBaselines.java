@@ -0,0 +1,130 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Throughput and latency results of the embedded broker scenarios. Every
+ * result is logged and written, with the results before it in the same JVM,
+ * to the properties file named by sdkperf.baseline.out (default
+ * build/amqp-baselines.properties). When sdkperf.baseline.in names the file of
+ * an earlier run on the same box, a scenario whose throughput is more than
+ * sdkperf.baseline.tolerancePercent (default 25) below the earlier one fails.
+ * Latencies are only logged next to the earlier ones, they are too noisy on a
+ * shared box to fail on.
+ */
+public final class BenchmarkBaselines {
+
+	private static final Log Trace = LogFactory.getLog(BenchmarkBaselines.class);
+
+	public static final String OUT_FILE = "sdkperf.baseline.out";
+	public static final String IN_FILE = "sdkperf.baseline.in";
+	public static final String TOLERANCE_PERCENT = "sdkperf.baseline.tolerancePercent";
+
+	private static final Properties _results = new Properties();
+	private static Properties _previous = null;
+
+	private BenchmarkBaselines() {
+	}
+
+	/** Records the rate of count messages in nanos and checks it against the earlier run. */
+	public static synchronized void recordRate(String scenario, long count, long nanos) throws IOException {
+		long msgsPerSec = Math.round(count * 1e9 / nanos);
+		String key = scenario + ".msgsPerSec";
+		String previous = getPrevious().getProperty(key);
+		Trace.info("Baseline " + key + "=" + msgsPerSec + ((previous == null) ? "" : " (earlier " + previous + ")"));
+		store(key, msgsPerSec);
+		if (previous != null) {
+			long floor = Long.parseLong(previous) * (100 - Integer.getInteger(TOLERANCE_PERCENT, 25)) / 100;
+			assertTrue(scenario + " throughput " + msgsPerSec + " msgs/s is below " + floor + " msgs/s",
+					msgsPerSec >= floor);
+		}
+	}
+
+	/** Records the p50, p99, p99.9 and max of a latency, in microseconds. */
+	public static synchronized void recordLatency(String scenario, String name, LatencyHistogram.Snapshot latency)
+			throws IOException {
+		String prefix = scenario + "." + name + "Us.";
+		recordMicros(prefix + "p50", latency.getValueAtPercentile(50.0));
+		recordMicros(prefix + "p99", latency.getValueAtPercentile(99.0));
+		recordMicros(prefix + "p99.9", latency.getValueAtPercentile(99.9));
+		recordMicros(prefix + "max", latency.getMax());
+	}
+
+	/** Records the outage and rate recovery time of a failover, in milliseconds. */
+	public static synchronized void recordFailover(String scenario, FailoverRecorder.Event event) throws IOException {
+		recordMillis(scenario + ".outageMs", event.getOutageNanos());
+		recordMillis(scenario + ".recoveryMs", event.getRecoveryNanos());
+	}
+
+	private static void recordMicros(String key, long nanos) throws IOException {
+		recordLogged(key, TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	private static void recordMillis(String key, long nanos) throws IOException {
+		recordLogged(key, TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	private static void recordLogged(String key, long value) throws IOException {
+		String previous = getPrevious().getProperty(key);
+		Trace.info("Baseline " + key + "=" + value + ((previous == null) ? "" : " (earlier " + previous + ")"));
+		store(key, value);
+	}
+
+	private static void store(String key, long value) throws IOException {
+		_results.setProperty(key, Long.toString(value));
+		File file = new File(System.getProperty(OUT_FILE, "build/amqp-baselines.properties"));
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			_results.store(out, "sdkperf AMQP plugin embedded broker baselines");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Properties getPrevious() throws IOException {
+		if (_previous == null) {
+			_previous = new Properties();
+			String inFile = System.getProperty(IN_FILE);
+			if (inFile != null && !inFile.isEmpty()) {
+				InputStream in = new FileInputStream(inFile);
+				try {
+					_previous.load(in);
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return _previous;
+	}
+}
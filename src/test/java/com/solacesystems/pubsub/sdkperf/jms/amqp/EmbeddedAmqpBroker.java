@@ -0,0 +1,88 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+
+/**
+ * Artemis broker in the test JVM that accepts AMQP on two local ports, so a
+ * client can be given a primary and a backup host. Nothing is persisted:
+ * messages held by the broker are gone after stop(). Queues are created on
+ * first use.
+ */
+public class EmbeddedAmqpBroker {
+
+	private final int[] _ports;
+	private EmbeddedActiveMQ _broker = null;
+
+	public EmbeddedAmqpBroker() throws IOException {
+		_ports = new int[] { freePort(), freePort() };
+	}
+
+	public synchronized void start() throws Exception {
+		if (_broker != null) {
+			return;
+		}
+		ConfigurationImpl config = new ConfigurationImpl();
+		config.setPersistenceEnabled(false);
+		config.setSecurityEnabled(false);
+		config.setJMXManagementEnabled(false);
+		for (int i = 0; i < _ports.length; i++) {
+			config.addAcceptorConfiguration("amqp" + i, "tcp://127.0.0.1:" + _ports[i] + "?protocols=AMQP");
+		}
+		EmbeddedActiveMQ broker = new EmbeddedActiveMQ();
+		broker.setConfiguration(config);
+		broker.start();
+		_broker = broker;
+	}
+
+	/** Stops the broker, dropping every client connection. */
+	public synchronized void stop() throws Exception {
+		if (_broker != null) {
+			_broker.stop();
+			_broker = null;
+		}
+	}
+
+	/** Stops the broker and starts it again on the same ports after downMsec. */
+	public void restart(long downMsec) throws Exception {
+		stop();
+		Thread.sleep(downMsec);
+		start();
+	}
+
+	public int getPort(int index) {
+		return _ports[index];
+	}
+
+	/** Both ports, as an sdkperf -cip host list. */
+	public String getHostList() {
+		return "amqp://127.0.0.1:" + _ports[0] + ",amqp://127.0.0.1:" + _ports[1];
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
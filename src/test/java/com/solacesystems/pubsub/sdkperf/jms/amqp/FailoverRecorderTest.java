@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Publishes to and consumes from a queue on an embedded broker with failover
+ * stats on, and restarts the broker while the client is running.
+ */
+public class FailoverRecorderTest {
+
+	private static final String QUEUE = "sdkperf.failover";
+	private static final long PUBLISH_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+	private static final long BROKER_DOWN_MSEC = 500;
+
+	private EmbeddedAmqpBroker _broker;
+	private SdkperfTestClient _testClient;
+	private AmqpJms_2_0_Client _client;
+
+	@Before
+	public void setUp() throws Exception {
+		_broker = new EmbeddedAmqpBroker();
+		_broker.start();
+		_testClient = new SdkperfTestClient(_broker, AmqpJms_2_0_Client.class, "-mt=persistent", "-rc=-1",
+				"-epl=" + AmqpPluginProperties.FAILOVER_STATS + ",true," + AmqpPluginProperties.PUB_WINDOW_SIZE
+						+ ",50,failover.reconnectDelay,100");
+		_client = (AmqpJms_2_0_Client) _testClient.getClient();
+		_testClient.consume(QUEUE);
+		_testClient.publishTo(QUEUE, 100);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try {
+			_testClient.disconnect();
+		} finally {
+			_broker.stop();
+		}
+	}
+
+	@Test
+	public void noEventWithoutOutage() throws Exception {
+		_testClient.publishFor(1000, PUBLISH_INTERVAL_NANOS);
+		awaitDelivered();
+		_client.getFailoverRecorder().stop();
+
+		assertTrue(_client.getFailoverRecorder().getEvents().isEmpty());
+		assertEquals(_testClient.getPublishCalls(), _client.getReceived());
+		assertEquals(0, _client.getLost());
+		assertEquals(0, _client.getDuplicates());
+	}
+
+	@Test
+	public void recordsBrokerRestart() throws Exception {
+		_testClient.publishFor(1000, PUBLISH_INTERVAL_NANOS);
+		Thread restart = new Thread() {
+			@Override
+			public void run() {
+				try {
+					_broker.restart(BROKER_DOWN_MSEC);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		restart.start();
+		long deadline = System.currentTimeMillis() + 20000;
+		while (_client.getFailoverRecorder().getEvents().isEmpty() && System.currentTimeMillis() < deadline) {
+			_testClient.publishFor(100, PUBLISH_INTERVAL_NANOS);
+		}
+		restart.join();
+		_testClient.publishFor(500, PUBLISH_INTERVAL_NANOS);
+		awaitDelivered();
+		_client.getFailoverRecorder().stop();
+
+		List<FailoverRecorder.Event> events = _client.getFailoverRecorder().getEvents();
+		assertEquals(1, events.size());
+		FailoverRecorder.Event event = events.get(0);
+		assertTrue(event.isRestored());
+		assertTrue("outage " + event.getOutageNanos(),
+				event.getOutageNanos() >= TimeUnit.MILLISECONDS.toNanos(BROKER_DOWN_MSEC / 2));
+		assertTrue(event.isRecovered());
+		assertTrue(event.getBaselineRate() > 0);
+		assertEquals(_client.getAsyncSendsFailed(), event.getFailedSends());
+		// Every sequence number up to the last one is either received once or counted as lost.
+		assertEquals(_testClient.getPublishCalls(), _client.getReceived() - _client.getDuplicates() + _client.getLost());
+		BenchmarkBaselines.recordFailover("failover", event);
+	}
+
+	/** Waits until the last message published has been received. */
+	private void awaitDelivered() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (_client.getReceived() - _client.getDuplicates() + _client.getLost() < _testClient.getPublishCalls()
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.BytesMessage;
+
+import org.junit.Test;
+
+/**
+ * Copies the payload of LargeMessageSource into a stub BytesMessage that
+ * records the chunks written to it, from one thread and from several at once.
+ */
+public class LargeMessageSourceTest {
+
+	private static final int CHUNK_SIZE = 1000;
+
+	@Test
+	public void streamsMappedFile() throws Exception {
+		byte[] content = new byte[10 * CHUNK_SIZE + 123];
+		new Random(1).nextBytes(content);
+		File file = File.createTempFile("sdkperf-large", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		LargeMessageSource source = LargeMessageSource.mapFile(file.getPath(), CHUNK_SIZE);
+		assertEquals(content.length, source.getSize());
+		byte[] chunk = source.newChunk();
+		for (int i = 0; i < 3; i++) {
+			BodyRecorder body = new BodyRecorder();
+			source.writeTo(body.message, chunk);
+			source.onSent();
+			assertArrayEquals(content, body.bytes.toByteArray());
+			assertEquals(11, body.writes);
+		}
+		assertEquals(3, source.getMessages());
+		assertEquals(3L * content.length, source.getBytes());
+		assertTrue(source.getHeapHighWater() > 0);
+	}
+
+	@Test
+	public void streamsDirectBuffer() throws Exception {
+		LargeMessageSource source = LargeMessageSource.allocate(5 * CHUNK_SIZE, CHUNK_SIZE);
+		BodyRecorder body = new BodyRecorder();
+		source.writeTo(body.message, source.newChunk());
+		byte[] written = body.bytes.toByteArray();
+		assertEquals(5 * CHUNK_SIZE, written.length);
+		assertEquals(5, body.writes);
+		assertEquals((byte) 4321, written[4321]);
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception {
+		final LargeMessageSource source = LargeMessageSource.allocate(5 * CHUNK_SIZE + 7, CHUNK_SIZE);
+		final byte[] expected = new byte[source.getSize()];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = (byte) i;
+		}
+		final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						byte[] chunk = source.newChunk();
+						for (int i = 0; i < 200; i++) {
+							BodyRecorder body = new BodyRecorder();
+							source.writeTo(body.message, chunk);
+							source.onSent();
+							assertArrayEquals(expected, body.bytes.toByteArray());
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(800, source.getMessages());
+		assertEquals(800L * expected.length, source.getBytes());
+	}
+
+	/** Records writeBytes(byte[], int, int) calls; no other method is expected. */
+	private static class BodyRecorder implements InvocationHandler {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BytesMessage message = (BytesMessage) Proxy.newProxyInstance(BytesMessage.class.getClassLoader(),
+				new Class<?>[] { BytesMessage.class }, this);
+		int writes = 0;
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("writeBytes") || args.length != 3) {
+				throw new UnsupportedOperationException(method.getName());
+			}
+			bytes.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+			writes++;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.jms.BytesMessage;
+
+import org.apache.qpid.jms.message.JmsBytesMessage;
+import org.apache.qpid.jms.provider.amqp.message.AmqpJmsBytesMessageFacade;
+import org.junit.Test;
+
+/**
+ * Compresses payloads into qpid BytesMessages and restores them the way a
+ * consumer does.
+ */
+public class PayloadCompressorTest {
+
+	@Test
+	public void roundTrip() throws Exception {
+		PayloadCompressor compressor = new PayloadCompressor(PayloadCompressor.DEFLATE, 6);
+		byte[] payload = new byte[10000];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) (i % 10);
+		}
+		byte[] random = new byte[5000];
+		new Random(1).nextBytes(random);
+
+		for (byte[] original : new byte[][] { payload, random, new byte[0], payload }) {
+			BytesMessage message = new JmsBytesMessage(new AmqpJmsBytesMessageFacade());
+			compressor.writeCompressed(original, message);
+			message.reset();
+			assertTrue(compressor.decompress(message));
+			assertEquals(original.length, message.getBodyLength());
+			byte[] restored = new byte[original.length];
+			message.readBytes(restored);
+			assertArrayEquals(original, restored);
+		}
+		assertEquals(4, compressor.getCompressed());
+		assertEquals(4, compressor.getDecompressed());
+		assertTrue(compressor.getRatio() > 1);
+	}
+
+	@Test
+	public void leavesUncompressedMessages() throws Exception {
+		PayloadCompressor compressor = new PayloadCompressor(PayloadCompressor.DEFLATE, -1);
+		assertFalse(compressor.isCompressing());
+		BytesMessage message = new JmsBytesMessage(new AmqpJmsBytesMessageFacade());
+		message.writeBytes(new byte[] { 1, 2, 3 });
+		message.reset();
+		assertFalse(compressor.decompress(message));
+		assertEquals(3, message.getBodyLength());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsOtherCodecs() {
+		new PayloadCompressor("lz4", 1);
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Request id matching, timeouts and late replies of RequestReplyTracker.
+ */
+public class RequestReplyTrackerTest {
+
+	@Test
+	public void matchesRepliesOutOfOrder() throws Exception {
+		RequestReplyTracker tracker = new RequestReplyTracker(64, 10000);
+		long[] ids = new long[64];
+		for (int round = 0; round < 100; round++) {
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = tracker.acquire();
+			}
+			// Every other one first, so removals leave gaps in the probe sequences.
+			for (int i = 0; i < ids.length; i += 2) {
+				tracker.onReply(ids[i]);
+			}
+			for (int i = ids.length - 1; i > 0; i -= 2) {
+				tracker.onReply(ids[i]);
+			}
+			assertEquals(0, tracker.getOutstanding());
+		}
+		assertEquals(6400, tracker.getRequests());
+		assertEquals(6400, tracker.getReplies());
+		assertEquals(6400, tracker.getRtt().getTotalCount());
+		assertEquals(0, tracker.getLateReplies());
+	}
+
+	@Test
+	public void expiresRequestsWhenFull() throws Exception {
+		RequestReplyTracker tracker = new RequestReplyTracker(2, 20);
+		long first = tracker.acquire();
+		tracker.acquire();
+		// Blocks until both have timed out.
+		tracker.acquire();
+		assertEquals(2, tracker.getTimeouts());
+		assertEquals(1, tracker.getOutstanding());
+
+		tracker.onReply(first);
+		assertEquals(1, tracker.getLateReplies());
+		assertEquals(0, tracker.getReplies());
+		assertFalse(tracker.awaitReplies());
+		assertEquals(3, tracker.getTimeouts());
+	}
+
+	@Test
+	public void cancelFreesSlot() throws Exception {
+		RequestReplyTracker tracker = new RequestReplyTracker(1, 10000);
+		tracker.cancel(tracker.acquire());
+		assertEquals(0, tracker.getRequests());
+		tracker.onReply(tracker.acquire());
+		assertTrue(tracker.awaitReplies());
+		assertEquals(1, tracker.getReplies());
+	}
+}
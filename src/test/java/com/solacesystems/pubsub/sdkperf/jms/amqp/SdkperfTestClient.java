@@ -0,0 +1,199 @@
+/**
+ *  Copyright 2009-2018 Solace Corporation. All rights reserved
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed WITHOUT ANY WARRANTY or support;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ *  A PARTICULAR PURPOSE.  All parts of this program are subject to
+ *  change without notice including the program's CLI options.
+ *
+ *  Unlimited use and re-distribution of this unmodified source code is
+ *  authorized only with written permission.  Use of part or modified
+ *  source code must carry prominent notices stating that you modified it,
+ *  and give a relevant date.
+ */
+package com.solacesystems.pubsub.sdkperf.jms.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import com.solacesystems.pubsub.sdkperf.config.CliPropertiesParser;
+import com.solacesystems.pubsub.sdkperf.config.EpConfigProperties;
+import com.solacesystems.pubsub.sdkperf.config.RuntimeProperties;
+import com.solacesystems.pubsub.sdkperf.core.BasicMsgRep;
+import com.solacesystems.pubsub.sdkperf.core.ClientFactory;
+import com.solacesystems.pubsub.sdkperf.core.GenericMessageDeliveryMode;
+import com.solacesystems.pubsub.sdkperf.util.DataTypes;
+
+/**
+ * Creates and drives one plugin client the way sdkperf does: the properties
+ * come from sdkperf command line options, ClientFactory creates and inits the
+ * client, and publishing calls publishMsg() and, on a transacted session,
+ * commitTransactionOnCurrPub() every -ats messages. With -cpt above 1,
+ * publishConcurrently() publishes from one thread per producer index, as
+ * sdkperf's publish threads do.
+ */
+public class SdkperfTestClient {
+
+	private final RuntimeProperties _props;
+	private final AmqpJmsClient _client;
+	private BasicMsgRep[] _msgReps = null;
+	private int _nextMsgRep = 0;
+	private int _transactionSize = 0;
+	private long _publishCalls = 0;
+
+	/**
+	 * Connects a client of the given class to both ports of the broker.
+	 *
+	 * @param options further sdkperf options, for example "-epl=..."
+	 */
+	public SdkperfTestClient(EmbeddedAmqpBroker broker, Class<? extends AmqpJmsClient> clientClass,
+			String... options) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("-api=thirdparty");
+		args.add("-ecc=" + clientClass.getName());
+		args.add("-cip=" + broker.getHostList());
+		args.addAll(Arrays.asList(options));
+		_props = CliPropertiesParser.parseCli(args.toArray(new String[args.size()]), System.out);
+		_client = (AmqpJmsClient) ClientFactory.createClient(_props, 1, null);
+		_client.connect();
+	}
+
+	public AmqpJmsClient getClient() {
+		return _client;
+	}
+
+	/** Adds a consumer on each queue, like -sql. */
+	public void consume(String... queues) throws Exception {
+		_client.queueUpdate(EpConfigProperties.CreateForQueueEpAdd(Arrays.asList(queues), null, false, "", 0, 0,
+				false, false, false));
+	}
+
+	/**
+	 * Sets up publishing of msgSize byte messages to the queue, with the -mt
+	 * delivery mode. With -ats the messages are sent on a transacted session.
+	 */
+	public void publishTo(String queue, int msgSize) throws Exception {
+		publishTo(Arrays.asList(queue), msgSize);
+	}
+
+	/** Like publishTo(String, int), sending to the queues in turn, like -pql with several queues. */
+	public void publishTo(List<String> queues, int msgSize) throws Exception {
+		String transactedSessionName = "";
+		Integer transactionSize = _props.getIntegerProperty(RuntimeProperties.AD_TRANSACTION_SIZE);
+		if (transactionSize != null && transactionSize > 0) {
+			_transactionSize = transactionSize;
+			transactedSessionName = _client.openTransactedSession(_props);
+		}
+		_client.setPublishProps(_props, 0, transactedSessionName);
+		for (int i = 1; i < getProducerCount(); i++) {
+			_client.setPublishProps(_props, i, "");
+		}
+
+		BasicMsgRep[] msgReps = new BasicMsgRep[queues.size()];
+		byte[] payload = new byte[msgSize];
+		for (int i = 0; i < msgReps.length; i++) {
+			msgReps[i] = new BasicMsgRep();
+			msgReps[i].configureForNormalMsg(null, payload, queues.get(i), DataTypes.PublisherDestinationsType.QUEUE,
+					(GenericMessageDeliveryMode) _props.getProperty(RuntimeProperties.PUB_MESSAGE_TYPE), null, null);
+		}
+		_msgReps = _client.cloneToApiSpecificMsgRep(msgReps);
+	}
+
+	/** Publishes count messages, as fast as possible when intervalNanos is 0. */
+	public void publish(long count, long intervalNanos) throws Exception {
+		for (long i = 0; i < count; i++) {
+			publishOne();
+			if (intervalNanos > 0) {
+				LockSupport.parkNanos(intervalNanos);
+			}
+		}
+	}
+
+	/**
+	 * Publishes one message every intervalNanos for msec. Failed publishes are
+	 * ignored, they show up as sequence gaps with failover stats on.
+	 */
+	public void publishFor(long msec, long intervalNanos) {
+		long end = System.nanoTime() + msec * 1000000L;
+		while (System.nanoTime() < end) {
+			try {
+				publishOne();
+			} catch (Exception e) {
+				// Counted in getPublishCalls().
+			}
+			LockSupport.parkNanos(intervalNanos);
+		}
+	}
+
+	/**
+	 * Publishes countPerProducer messages on every producer index at once,
+	 * each index from its own thread.
+	 */
+	public void publishConcurrently(final long countPerProducer) throws Exception {
+		final List<Exception> failures = new CopyOnWriteArrayList<Exception>();
+		Thread[] threads = new Thread[getProducerCount()];
+		for (int i = 0; i < threads.length; i++) {
+			final int producerIndex = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (long n = 0; n < countPerProducer; n++) {
+							_client.publishMsg(_msgReps[(int) (n % _msgReps.length)], producerIndex);
+						}
+					} catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			}, "sdkperf-test-pub-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!failures.isEmpty()) {
+			throw failures.get(0);
+		}
+	}
+
+	private int getProducerCount() {
+		Integer producers = _props.getIntegerProperty(RuntimeProperties.NUM_PUBS_PER_SESSION);
+		return (producers == null || producers < 1) ? 1 : producers;
+	}
+
+	private void publishOne() throws Exception {
+		_publishCalls++;
+		_client.publishMsg(_msgReps[_nextMsgRep], 0);
+		if (++_nextMsgRep == _msgReps.length) {
+			_nextMsgRep = 0;
+		}
+		if (_transactionSize > 0 && (_publishCalls % _transactionSize) == 0) {
+			_client.commitTransactionOnCurrPub(0, false);
+		}
+	}
+
+	/** publishMsg() calls so far, including the ones that threw. */
+	public long getPublishCalls() {
+		return _publishCalls;
+	}
+
+	/** Waits until count messages have been received. */
+	public boolean awaitReceived(long count, long timeoutMsec) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		while (_client.getReceived() < count) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	public void disconnect() throws Exception {
+		_client.disconnect();
+	}
+}